@@ -0,0 +1,22 @@
+package com.weaverplatform.importer.xmi;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Models of a given number of classes for the benchmarks, generated with the XmiGenerator defaults:
+ * one value class per ten classes and one association per class.
+ */
+public class BenchmarkModels {
+
+  public static byte[] model(int classes) {
+    XmiGenerator generator = new XmiGenerator();
+    generator.setClasses(classes);
+    generator.setValueClasses(classes / 10);
+    generator.setStubs(classes / 100);
+    generator.setAssociations(classes);
+
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generator.write(out);
+    return out.toByteArray();
+  }
+}
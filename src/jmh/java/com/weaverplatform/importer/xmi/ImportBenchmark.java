@@ -0,0 +1,51 @@
+package com.weaverplatform.importer.xmi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A whole ImportXmi.run into a sink without a network: CountingSink measures the importer on its own,
+ * MemorySink adds the cost of keeping the graph.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ImportBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int classes;
+
+  @Param({"counting", "memory"})
+  public String sink;
+
+  private byte[] model;
+
+  @Setup
+  public void setup() {
+    model = BenchmarkModels.model(classes);
+  }
+
+  @Benchmark
+  public ImportSink run() {
+    ImportSink importSink = "memory".equals(sink) ? new MemorySink() : new CountingSink();
+    ImportXmi importXmi = new ImportXmi(importSink, "benchmark");
+    importXmi.readFromInputStream(new ByteArrayInputStream(model));
+    importXmi.run();
+    return importSink;
+  }
+}
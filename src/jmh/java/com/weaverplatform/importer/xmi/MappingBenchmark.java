@@ -0,0 +1,90 @@
+package com.weaverplatform.importer.xmi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.w3c.dom.Document;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import java.io.ByteArrayInputStream;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The in-memory steps between reading and writing: indexing the document, mapping the classes and deriving
+ * the names of individuals and predicates.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class MappingBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int classes;
+
+  private Document document;
+  private XmiIndex index;
+  private String[] classNames;
+  private String[] predicateIds;
+
+  @Setup
+  public void setup() throws Exception {
+    DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
+    domFactory.setNamespaceAware(true);
+    document = domFactory.newDocumentBuilder().parse(new ByteArrayInputStream(BenchmarkModels.model(classes)));
+    index = XmiIndex.build(document);
+
+    classNames = new String[index.getClasses().size()];
+    for(int i = 0; i < classNames.length; i++) {
+      classNames[i] = index.getClasses().get(i).getName();
+    }
+    predicateIds = new String[index.getAssociations().size()];
+    for(int i = 0; i < predicateIds.length; i++) {
+      XmiIndex.Association association = index.getAssociations().get(i);
+      predicateIds[i] = NameProcessor.DEFAULT.domainPredicateRangeToId(association.getSourceName(), association.getName(), association.getTargetName());
+    }
+  }
+
+  @Benchmark
+  public XmiIndex buildIndex() {
+    return XmiIndex.build(document);
+  }
+
+  @Benchmark
+  public HashMap<String, String> mapXmiClasses() {
+    HashMap<String, String> xmiClasses = new HashMap<>();
+    IndividualCreator creator = new IndividualCreator(null, index, xmiClasses, new HashMap<String, String>(), null, null);
+    creator.mapXmiClasses();
+    return xmiClasses;
+  }
+
+  @Benchmark
+  public void deAccent(Blackhole blackhole) {
+    for(String name : classNames) {
+      blackhole.consume(IndividualCreator.deAccent(name));
+    }
+  }
+
+  @Benchmark
+  public void predicateNames(Blackhole blackhole) {
+    for(XmiIndex.Association association : index.getAssociations()) {
+      blackhole.consume(NameProcessor.DEFAULT.domainPredicateRangeToId(association.getSourceName(), association.getName(), association.getTargetName()));
+    }
+    for(String predicateId : predicateIds) {
+      blackhole.consume(NameProcessor.DEFAULT.predicateNameFromId(predicateId));
+      blackhole.consume(NameProcessor.DEFAULT.predicateReversedNameFromId(predicateId));
+    }
+  }
+}
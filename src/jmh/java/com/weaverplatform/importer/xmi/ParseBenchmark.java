@@ -0,0 +1,49 @@
+package com.weaverplatform.importer.xmi;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading an xmi model into the document and XmiIndex, with the DOM parser and with the streaming reader.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ParseBenchmark {
+
+  @Param({"100", "1000", "10000"})
+  public int classes;
+
+  @Param({"false", "true"})
+  public boolean streaming;
+
+  private byte[] model;
+
+  @Setup
+  public void setup() {
+    model = BenchmarkModels.model(classes);
+  }
+
+  @Benchmark
+  public XmiIndex readFromInputStream() {
+    ImportXmi importXmi = new ImportXmi((ImportSink) null, "benchmark");
+    importXmi.setStreaming(streaming);
+    importXmi.readFromInputStream(new ByteArrayInputStream(model));
+    return importXmi.getIndex();
+  }
+}
@@ -0,0 +1,167 @@
+package com.weaverplatform.importer.xmi;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Imports several xmi files, each into its own dataset, over one shared sink (e.g. one Weaver connection).
+ *
+ * The files are read, mapped and written in parallel by a pool of workers, so the batch takes about as
+ * long as its largest file instead of the sum of all files. A failing file does not stop the others.
+ */
+public class BatchImport {
+
+  private final ImportSink sink;
+  private final int parallelism;
+  private final LinkedHashMap<File, String> files = new LinkedHashMap<>();   // file -> datasetId
+  private File reports;
+  private boolean journal = false;
+  private boolean resume = false;
+
+  /**
+   * @param sink shared by all imports, not closed by the batch
+   * @param parallelism number of files imported at the same time
+   */
+  public BatchImport(ImportSink sink, int parallelism) {
+    this.sink = sink;
+    this.parallelism = Math.max(1, parallelism);
+  }
+
+  public void add(File file, String datasetId) {
+    files.put(file, datasetId);
+  }
+
+  /**
+   * Adds the files of a directory (*.xml and *.xmi, into a dataset named after the file), or the files of a
+   * list with one "filePath datasetId" per line
+   */
+  public void addAll(File directoryOrList) {
+    if(directoryOrList.isDirectory()) {
+      File[] entries = directoryOrList.listFiles();
+      if(entries == null) {
+        throw new RuntimeException("Problem reading directory "+directoryOrList);
+      }
+      Arrays.sort(entries);
+      for(File entry : entries) {
+        String name = entry.getName();
+        int extension = name.lastIndexOf('.');
+        if(entry.isFile() && extension > 0 && (name.endsWith(".xml") || name.endsWith(".xmi"))) {
+          add(entry, name.substring(0, extension));
+        }
+      }
+      return;
+    }
+
+    try (BufferedReader reader = Files.newBufferedReader(directoryOrList.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while((line = reader.readLine()) != null) {
+        line = line.trim();
+        if(line.isEmpty() || line.startsWith("#")) {
+          continue;
+        }
+        String[] parts = line.split("\\s+");
+        if(parts.length != 2) {
+          throw new RuntimeException("Expected \"filePath datasetId\" in "+directoryOrList+": "+line);
+        }
+        File file = new File(parts[0]);
+        if(!file.isAbsolute()) {
+          file = new File(directoryOrList.getAbsoluteFile().getParentFile(), parts[0]);
+        }
+        add(file, parts[1]);
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Problem reading file "+directoryOrList, e);
+    }
+  }
+
+  /**
+   * Records the writes of every file in a journal (filePath.journal), removed when the file is imported
+   *
+   * @param journal
+   */
+  public void setJournal(boolean journal) {
+    this.journal = journal;
+  }
+
+  /**
+   * Continue failed imports from their journals (filePath.journal), implies setJournal(true)
+   *
+   * @param resume
+   */
+  public void setResume(boolean resume) {
+    this.resume = resume;
+  }
+
+  /**
+   * Writes the metrics of every file to this directory as fileName.report.json, see ImportMetrics
+   *
+   * @param reports
+   */
+  public void setReports(File reports) {
+    this.reports = reports;
+  }
+
+  public Map<File, String> getFiles() {
+    return Collections.unmodifiableMap(files);
+  }
+
+  /**
+   * Imports all files
+   *
+   * @return the files that failed with their error, empty when all files were imported
+   */
+  public Map<File, Throwable> run() {
+    ExecutorService workers = Executors.newFixedThreadPool(Math.min(parallelism, Math.max(1, files.size())));
+    try {
+      LinkedHashMap<File, Future<?>> imports = new LinkedHashMap<>();
+      for(final Map.Entry<File, String> entry : files.entrySet()) {
+        imports.put(entry.getKey(), workers.submit(new Runnable() {
+          @Override
+          public void run() {
+            importFile(entry.getKey(), entry.getValue());
+          }
+        }));
+      }
+
+      LinkedHashMap<File, Throwable> failures = new LinkedHashMap<>();
+      for(Map.Entry<File, Future<?>> entry : imports.entrySet()) {
+        try {
+          entry.getValue().get();
+        } catch (ExecutionException e) {
+          failures.put(entry.getKey(), e.getCause());
+          System.out.println("Import of "+entry.getKey()+" failed: "+e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new RuntimeException("Interrupted while importing "+entry.getKey(), e);
+        }
+      }
+      return failures;
+    } finally {
+      workers.shutdownNow();
+    }
+  }
+
+  private void importFile(File file, String datasetId) {
+    ImportXmi importXmi = new ImportXmi(sink, datasetId);
+    if(journal || resume) {
+      importXmi.setJournal(new File(file.getPath()+".journal"), resume);
+    }
+    if(reports != null) {
+      importXmi.setReport(new File(reports, file.getName()+".report.json"));
+    }
+    importXmi.readFromFile(file.getPath());
+    importXmi.run();
+    System.out.println("Imported "+file+" into "+datasetId);
+  }
+}
@@ -0,0 +1,185 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * The generalizations of a model as a graph over numbered classes, built from the index before anything is
+ * written. Generalizations to classes that are not in the model and cycles in the hierarchy are found here,
+ * instead of halfway through an import.
+ *
+ * Edges point from subclass to superclass and are stored as compressed rows: the superclasses of class c are
+ * supertypes[offsets[c]] until supertypes[offsets[c + 1]].
+ */
+public class ClassHierarchy {
+
+  private static final int MAX_REPORTED = 10;
+
+  private final HashMap<String, Integer> numbers = new HashMap<>();   // XMI_ID -> class number
+  private final List<String> xmiIds = new ArrayList<>();              // class number -> XMI_ID
+  private final List<XmiIndex.Generalization> generalizations = new ArrayList<>();
+  private final List<String> dangling = new ArrayList<>();
+  private int[] offsets;
+  private int[] supertypes;
+  private List<String> cycle = Collections.emptyList();
+
+  public static ClassHierarchy build(XmiIndex index) {
+    ClassHierarchy hierarchy = new ClassHierarchy();
+    for(XmiIndex.XmiClass xmiClass : index.getClasses()) {
+      hierarchy.number(xmiClass.getXmiId());
+    }
+    for(XmiIndex.XmiClass stub : index.getStubs()) {
+      hierarchy.number(stub.getXmiId());
+    }
+
+    int classes = hierarchy.xmiIds.size();
+    List<int[]> edges = new ArrayList<>();
+    for(XmiIndex.Generalization generalization : index.getGeneralizations()) {
+      if(generalization.getSubtype() == null || generalization.getSupertype() == null) {
+        continue;
+      }
+      Integer subtype = hierarchy.numbers.get(generalization.getSubtype());
+      Integer supertype = hierarchy.numbers.get(generalization.getSupertype());
+      if(subtype == null || supertype == null) {
+        hierarchy.dangling.add("generalization "+generalization.getXmiId()+" refers to unknown class "+(subtype == null ? generalization.getSubtype() : generalization.getSupertype()));
+        continue;
+      }
+      hierarchy.generalizations.add(generalization);
+      edges.add(new int[] { subtype, supertype });
+    }
+
+    hierarchy.offsets = new int[classes + 1];
+    for(int[] edge : edges) {
+      hierarchy.offsets[edge[0] + 1]++;
+    }
+    for(int c = 0; c < classes; c++) {
+      hierarchy.offsets[c + 1] += hierarchy.offsets[c];
+    }
+    hierarchy.supertypes = new int[edges.size()];
+    int[] next = Arrays.copyOf(hierarchy.offsets, classes);
+    for(int[] edge : edges) {
+      hierarchy.supertypes[next[edge[0]]++] = edge[1];
+    }
+
+    hierarchy.cycle = hierarchy.findCycle();
+    return hierarchy;
+  }
+
+  private void number(String xmiId) {
+    if(xmiId != null && !numbers.containsKey(xmiId)) {
+      numbers.put(xmiId, xmiIds.size());
+      xmiIds.add(xmiId);
+    }
+  }
+
+  /**
+   * Iterative depth-first search, a superclass that is still on the path closes a cycle
+   *
+   * @return the XMI_IDs of the classes on the first cycle found, the first class repeated at the end
+   */
+  private List<String> findCycle() {
+    int classes = xmiIds.size();
+    byte[] state = new byte[classes];         // 0 unvisited, 1 on the path, 2 done
+    int[] path = new int[classes];
+    int[] cursor = new int[classes];
+
+    for(int root = 0; root < classes; root++) {
+      if(state[root] != 0) {
+        continue;
+      }
+      int depth = 0;
+      path[0] = root;
+      cursor[0] = offsets[root];
+      state[root] = 1;
+
+      while(depth >= 0) {
+        int c = path[depth];
+        if(cursor[depth] == offsets[c + 1]) {
+          state[c] = 2;
+          depth--;
+          continue;
+        }
+        int supertype = supertypes[cursor[depth]++];
+        if(state[supertype] == 1) {
+          List<String> found = new ArrayList<>();
+          int start = depth;
+          while(path[start] != supertype) {
+            start--;
+          }
+          for(int i = start; i <= depth; i++) {
+            found.add(xmiIds.get(path[i]));
+          }
+          found.add(xmiIds.get(supertype));
+          return found;
+        }
+        if(state[supertype] == 0) {
+          state[supertype] = 1;
+          depth++;
+          path[depth] = supertype;
+          cursor[depth] = offsets[supertype];
+        }
+      }
+    }
+    return Collections.emptyList();
+  }
+
+  /**
+   * @throws RuntimeException when generalizations refer to unknown classes or the hierarchy has a cycle
+   */
+  public void validate() {
+    if(dangling.isEmpty() && cycle.isEmpty()) {
+      return;
+    }
+    StringBuilder message = new StringBuilder("Problem with the generalizations of the model:");
+    for(int i = 0; i < dangling.size() && i < MAX_REPORTED; i++) {
+      message.append("\n  ").append(dangling.get(i));
+    }
+    if(dangling.size() > MAX_REPORTED) {
+      message.append("\n  ... and ").append(dangling.size() - MAX_REPORTED).append(" more");
+    }
+    if(!cycle.isEmpty()) {
+      message.append("\n  cycle ");
+      for(int i = 0; i < cycle.size(); i++) {
+        message.append(i > 0 ? " -> " : "").append(cycle.get(i));
+      }
+    }
+    throw new RuntimeException(message.toString());
+  }
+
+  public int getClassCount() {
+    return xmiIds.size();
+  }
+
+  /**
+   * @return the generalizations between known classes, in document order
+   */
+  public List<XmiIndex.Generalization> getGeneralizations() {
+    return generalizations;
+  }
+
+  public List<String> getDangling() {
+    return dangling;
+  }
+
+  public List<String> getCycle() {
+    return cycle;
+  }
+
+  /**
+   * @return the XMI_IDs of the direct superclasses of a class
+   */
+  public List<String> getSupertypes(String xmiId) {
+    Integer c = numbers.get(xmiId);
+    if(c == null) {
+      return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<>();
+    for(int i = offsets[c]; i < offsets[c + 1]; i++) {
+      result.add(xmiIds.get(supertypes[i]));
+    }
+    return result;
+  }
+}
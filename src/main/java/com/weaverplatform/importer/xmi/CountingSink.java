@@ -0,0 +1,112 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts the calls of an import, and either forwards them to another sink or discards them.
+ *
+ * Without a delegate nothing is stored: every id is accepted and every relation points to a new id, which
+ * measures the mapping of the importer on its own.
+ */
+public class CountingSink implements ImportSink {
+
+  private final ImportSink delegate;
+  private final AtomicLong ids = new AtomicLong();
+
+  private final AtomicLong adds = new AtomicLong();
+  private final AtomicLong collections = new AtomicLong();
+  private final AtomicLong lookups = new AtomicLong();
+  private final AtomicLong links = new AtomicLong();
+
+  public CountingSink() {
+    this(null);
+  }
+
+  /**
+   * @param delegate receives all calls, null to discard them
+   */
+  public CountingSink(ImportSink delegate) {
+    this.delegate = delegate;
+  }
+
+  @Override
+  public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+    adds.incrementAndGet();
+    if(delegate != null) {
+      return delegate.add(attributes, type, id, relations);
+    }
+    return id != null ? id : generateId();
+  }
+
+  @Override
+  public String collection() {
+    collections.incrementAndGet();
+    return delegate != null ? delegate.collection() : generateId();
+  }
+
+  @Override
+  public String get(String id) {
+    lookups.incrementAndGet();
+    return delegate != null ? delegate.get(id) : null;
+  }
+
+  @Override
+  public String dataset(String datasetId) {
+    lookups.incrementAndGet();
+    return delegate != null ? delegate.dataset(datasetId) : datasetId;
+  }
+
+  @Override
+  public String relation(String id, String key) {
+    lookups.incrementAndGet();
+    return delegate != null ? delegate.relation(id, key) : generateId();
+  }
+
+  @Override
+  public void link(String parentId, String key, String childId) {
+    links.incrementAndGet();
+    if(delegate != null) {
+      delegate.link(parentId, key, childId);
+    }
+  }
+
+  @Override
+  public void updateLink(String parentId, String key, String childId) {
+    links.incrementAndGet();
+    if(delegate != null) {
+      delegate.updateLink(parentId, key, childId);
+    }
+  }
+
+  @Override
+  public void close() {
+    if(delegate != null) {
+      delegate.close();
+    }
+  }
+
+  private String generateId() {
+    return "count-"+ids.incrementAndGet();
+  }
+
+  public long getAdds() {
+    return adds.get();
+  }
+
+  public long getCollections() {
+    return collections.get();
+  }
+
+  public long getLookups() {
+    return lookups.get();
+  }
+
+  public long getLinks() {
+    return links.get();
+  }
+
+  public long getTotal() {
+    return getAdds() + getCollections() + getLookups() + getLinks();
+  }
+}
@@ -0,0 +1,72 @@
+package com.weaverplatform.importer.xmi;
+
+/**
+ * Handle to an entity that is created or looked up through a WritePipeline.
+ *
+ * The id of a generated entity is only known after the pipeline has flushed the operation that produces it,
+ * the handle can be used in relations and links before that.
+ */
+public class EntityRef {
+
+  private final String id;
+  private volatile String resolvedId;
+  private volatile String type;
+  private volatile boolean resolved;
+  private volatile Operation source;
+  private long sequence = -1;                                     // position in an OperationLog
+
+  EntityRef(String type, String id) {
+    this.type = type;
+    this.id = id;
+  }
+
+  /**
+   * @return the id of the entity, null for entities with a generated id that have not been written yet
+   */
+  public String getId() {
+    return resolved ? resolvedId : id;
+  }
+
+  /**
+   * @return the type the entity is created with or has in the sink, null if unknown
+   */
+  public String getType() {
+    return type;
+  }
+
+  public boolean isResolved() {
+    return resolved;
+  }
+
+  Operation getSource() {
+    return source;
+  }
+
+  void setSource(Operation source) {
+    this.source = source;
+  }
+
+  /**
+   * @param type the type reported by the sink, null to keep the planned type
+   */
+  void resolve(String id, String type) {
+    this.resolvedId = id;
+    if(type != null) {
+      this.type = type;
+    }
+    this.resolved = true;
+    this.source = null;
+  }
+
+  /**
+   * Marks the producing operation as written to an OperationLog instead of the sink
+   */
+  void logged(long sequence) {
+    this.sequence = sequence;
+    this.source = null;
+  }
+
+  long getSequence() {
+    return sequence;
+  }
+}
@@ -0,0 +1,41 @@
+package com.weaverplatform.importer.xmi;
+
+/**
+ * Receives the progress of an import, see ImportMetrics for the listener ImportXmi always has.
+ *
+ * Operations are reported from the threads of the WritePipeline, implementations must be thread safe.
+ */
+public interface ImportListener {
+
+  ImportListener NONE = new ImportListener() {
+    @Override
+    public void importStarted() {
+    }
+
+    @Override
+    public void stageFinished(String stage, long nanos) {
+    }
+
+    @Override
+    public void operationExecuted(Operation.Kind kind, long nanos) {
+    }
+
+    @Override
+    public void importFinished(long nanos) {
+    }
+  };
+
+  void importStarted();
+
+  /**
+   * @param stage parse, classes, predicates, individuals, generalizations or views
+   */
+  void stageFinished(String stage, long nanos);
+
+  /**
+   * A call to the sink has returned
+   */
+  void operationExecuted(Operation.Kind kind, long nanos);
+
+  void importFinished(long nanos);
+}
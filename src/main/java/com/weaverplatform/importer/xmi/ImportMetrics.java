@@ -0,0 +1,275 @@
+package com.weaverplatform.importer.xmi;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the stage times, operation counts and latencies of an import and writes them as a JSON report.
+ *
+ * Latencies are kept in histograms with power of two buckets of microseconds, so recording is lock-free and
+ * the memory is fixed however many operations an import does. Events are passed on to the added listeners.
+ *
+ * The peak heap is the largest used heap seen when the parse or a stage finished, from the start of the parse
+ * on. It is sampled instead of read from the JVM-wide peak of the memory pools, resetting those would clobber
+ * the peaks of concurrent imports (see BatchImport, ImportServer). The heap is shared by the whole process,
+ * so with concurrent imports the samples include the memory of the others.
+ */
+public class ImportMetrics implements ImportListener {
+
+  private static final int BUCKETS = 40;
+
+  private final List<ImportListener> listeners = new CopyOnWriteArrayList<>();
+
+  private final LinkedHashMap<String, Long> stages = new LinkedHashMap<>();     // stage -> nanos
+  private final EnumMap<Operation.Kind, Latency> latencies = new EnumMap<>(Operation.Kind.class);
+  private volatile long importNanos;
+  private final AtomicLong peakHeap = new AtomicLong();
+
+  public ImportMetrics() {
+    for(Operation.Kind kind : Operation.Kind.values()) {
+      latencies.put(kind, new Latency());
+    }
+  }
+
+  public void addListener(ImportListener listener) {
+    listeners.add(listener);
+  }
+
+  /**
+   * Starts sampling the peak heap, called when the parse of the model starts so the parse is included
+   */
+  public void parseStarted() {
+    peakHeap.set(0);
+    sampleHeap();
+  }
+
+  @Override
+  public void importStarted() {
+    for(Latency latency : latencies.values()) {
+      latency.reset();
+    }
+    for(ImportListener listener : listeners) {
+      listener.importStarted();
+    }
+  }
+
+  @Override
+  public void stageFinished(String stage, long nanos) {
+    synchronized (stages) {
+      stages.put(stage, nanos);
+    }
+    sampleHeap();
+    for(ImportListener listener : listeners) {
+      listener.stageFinished(stage, nanos);
+    }
+  }
+
+  @Override
+  public void operationExecuted(Operation.Kind kind, long nanos) {
+    latencies.get(kind).record(nanos);
+    for(ImportListener listener : listeners) {
+      listener.operationExecuted(kind, nanos);
+    }
+  }
+
+  @Override
+  public void importFinished(long nanos) {
+    importNanos = nanos;
+    sampleHeap();
+    for(ImportListener listener : listeners) {
+      listener.importFinished(nanos);
+    }
+  }
+
+
+
+  /**
+   * @return stage -> wall time in milliseconds, in the order the stages finished
+   */
+  public Map<String, Long> getStageMillis() {
+    LinkedHashMap<String, Long> millis = new LinkedHashMap<>();
+    synchronized (stages) {
+      for(Map.Entry<String, Long> stage : stages.entrySet()) {
+        millis.put(stage.getKey(), TimeUnit.NANOSECONDS.toMillis(stage.getValue()));
+      }
+    }
+    return millis;
+  }
+
+  public long getCount(Operation.Kind kind) {
+    return latencies.get(kind).count.get();
+  }
+
+  /**
+   * @return the number of entities and collections that were written
+   */
+  public long getEntities() {
+    return getCount(Operation.Kind.ADD) + getCount(Operation.Kind.COLLECTION);
+  }
+
+  public double getEntitiesPerSecond() {
+    return importNanos == 0 ? 0 : getEntities() * 1e9 / importNanos;
+  }
+
+  public long getPeakHeap() {
+    return peakHeap.get();
+  }
+
+  public String summary() {
+    return "Imported "+getEntities()+" entities in "+TimeUnit.NANOSECONDS.toMillis(importNanos)+" ms ("+Math.round(getEntitiesPerSecond())+"/s), stages "+getStageMillis();
+  }
+
+  public String toJson() {
+    StringBuilder json = new StringBuilder();
+    json.append("{\n");
+    json.append("  \"importMs\": ").append(TimeUnit.NANOSECONDS.toMillis(importNanos)).append(",\n");
+    json.append("  \"entities\": ").append(getEntities()).append(",\n");
+    json.append("  \"entitiesPerSecond\": ").append(Math.round(getEntitiesPerSecond())).append(",\n");
+    json.append("  \"peakHeapBytes\": ").append(peakHeap.get()).append(",\n");
+
+    json.append("  \"stagesMs\": {");
+    List<String> entries = new ArrayList<>();
+    for(Map.Entry<String, Long> stage : getStageMillis().entrySet()) {
+      entries.add(quote(stage.getKey())+": "+stage.getValue());
+    }
+    json.append(join(entries)).append("},\n");
+
+    json.append("  \"operations\": {\n");
+    entries.clear();
+    for(Map.Entry<Operation.Kind, Latency> latency : latencies.entrySet()) {
+      entries.add("    \""+latency.getKey()+"\": "+latency.getValue().toJson());
+    }
+    json.append(join(entries, ",\n")).append("\n  }\n");
+    json.append("}\n");
+    return json.toString();
+  }
+
+  public void writeReport(File file) {
+    try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      writer.write(toJson());
+    } catch (IOException e) {
+      throw new RuntimeException("Problem writing report "+file, e);
+    }
+  }
+
+  private void sampleHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    long used = runtime.totalMemory() - runtime.freeMemory();
+    long peak;
+    while(used > (peak = peakHeap.get()) && !peakHeap.compareAndSet(peak, used)) {
+    }
+  }
+
+  /**
+   * @return the value as a JSON string
+   */
+  static String quote(String value) {
+    StringBuilder quoted = new StringBuilder("\"");
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if(c == '"' || c == '\\') {
+        quoted.append('\\').append(c);
+      } else if(c < 0x20) {
+        quoted.append(String.format("\\u%04x", (int) c));
+      } else {
+        quoted.append(c);
+      }
+    }
+    return quoted.append('"').toString();
+  }
+
+  private static String join(List<String> values) {
+    return join(values, ", ");
+  }
+
+  private static String join(List<String> values, String separator) {
+    StringBuilder joined = new StringBuilder();
+    for(String value : values) {
+      if(joined.length() > 0) {
+        joined.append(separator);
+      }
+      joined.append(value);
+    }
+    return joined.toString();
+  }
+
+
+
+  /**
+   * Count, total and histogram of the latencies of one kind of operation
+   */
+  private static class Latency {
+
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong totalNanos = new AtomicLong();
+    private final AtomicLong maxNanos = new AtomicLong();
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);   // bucket i: < 2^i microseconds
+
+    void record(long nanos) {
+      count.incrementAndGet();
+      totalNanos.addAndGet(nanos);
+      long max;
+      while(nanos > (max = maxNanos.get()) && !maxNanos.compareAndSet(max, nanos)) {
+      }
+      long micros = nanos / 1000;
+      int bucket = micros == 0 ? 0 : 64 - Long.numberOfLeadingZeros(micros);
+      buckets.incrementAndGet(Math.min(bucket, BUCKETS - 1));
+    }
+
+    void reset() {
+      count.set(0);
+      totalNanos.set(0);
+      maxNanos.set(0);
+      for(int i = 0; i < BUCKETS; i++) {
+        buckets.set(i, 0);
+      }
+    }
+
+    /**
+     * @return the upper bound in microseconds of the bucket the fraction of operations falls in
+     */
+    long percentileMicros(double fraction) {
+      long target = (long) Math.ceil(count.get() * fraction);
+      long seen = 0;
+      for(int i = 0; i < BUCKETS; i++) {
+        seen += buckets.get(i);
+        if(seen >= target && seen > 0) {
+          return 1L << i;
+        }
+      }
+      return 0;
+    }
+
+    String toJson() {
+      long operations = count.get();
+      StringBuilder json = new StringBuilder();
+      json.append("{\"count\": ").append(operations);
+      json.append(", \"totalMs\": ").append(TimeUnit.NANOSECONDS.toMillis(totalNanos.get()));
+      json.append(", \"meanUs\": ").append(operations == 0 ? 0 : totalNanos.get() / operations / 1000);
+      json.append(", \"p50Us\": ").append(percentileMicros(0.5));
+      json.append(", \"p99Us\": ").append(percentileMicros(0.99));
+      json.append(", \"maxUs\": ").append(maxNanos.get() / 1000);
+      json.append(", \"histogramUs\": {");
+      List<String> entries = new ArrayList<>();
+      for(int i = 0; i < BUCKETS; i++) {
+        if(buckets.get(i) > 0) {
+          entries.add("\"<"+(1L << i)+"\": "+buckets.get(i));
+        }
+      }
+      json.append(join(entries)).append("}}");
+      return json.toString();
+    }
+  }
+}
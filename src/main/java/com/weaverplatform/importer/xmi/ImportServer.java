@@ -0,0 +1,453 @@
+package com.weaverplatform.importer.xmi;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs imports for other processes. Xmi files are posted over http on localhost, queued as jobs and imported
+ * by a fixed pool of workers into one shared sink, so the JVM and the Weaver connections stay warm between
+ * imports.
+ *
+ *   POST /imports?dataset=name[&streaming=true]   the body is the xmi file, answers 202 with the job
+ *   GET  /imports                                 all jobs
+ *   GET  /imports/{id}                            one job, with the metrics of its import
+ *   GET  /metrics                                 job counts and totals of the server
+ *
+ * When the queue is full a post is answered with 503, the client should try again later. A post larger than
+ * the upload limit is answered with 413. A finished job only keeps the metrics of its import.
+ */
+public class ImportServer {
+
+  public static final int DEFAULT_PORT = 9488;
+  public static final int DEFAULT_QUEUE_SIZE = 100;
+  public static final long DEFAULT_MAX_UPLOAD_BYTES = 512L * 1024 * 1024;
+
+  private static final int MAX_JOBS = 1000;     // finished jobs are forgotten beyond this number
+
+  public enum Status { QUEUED, RUNNING, DONE, FAILED }
+
+  private final ImportSink sink;
+  private final int workerCount;
+  private final ThreadPoolExecutor workers;
+  private final LinkedHashMap<Long, Job> jobs = new LinkedHashMap<>();     // id -> job, guarded by itself
+  private final AtomicLong ids = new AtomicLong();
+  private final AtomicLong entities = new AtomicLong();
+  private final long startedAt = System.currentTimeMillis();
+
+  private long maxUploadBytes = DEFAULT_MAX_UPLOAD_BYTES;
+  private HttpServer server;
+  private ExecutorService requests;
+
+  /**
+   * @param sink shared by all imports, not closed by the server
+   * @param workers number of imports that run at the same time
+   * @param queueSize number of imports that can wait for a worker
+   */
+  public ImportServer(ImportSink sink, int workers, int queueSize) {
+    this.sink = sink;
+    this.workerCount = Math.max(1, workers);
+    this.workers = new ThreadPoolExecutor(workerCount, workerCount, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(Math.max(1, queueSize)));
+  }
+
+  /**
+   * Listens on the loopback interface
+   *
+   * @param port 0 for any free port, see getPort()
+   */
+  public void start(int port) {
+    try {
+      server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+    } catch (IOException e) {
+      throw new RuntimeException("Problem starting server on port "+port, e);
+    }
+    requests = Executors.newFixedThreadPool(2);
+    server.setExecutor(requests);
+    server.createContext("/", new HttpHandler() {
+      @Override
+      public void handle(HttpExchange exchange) throws IOException {
+        try {
+          route(exchange);
+        } catch (RuntimeException e) {
+          // The response code is -1 until the headers are sent, after that only the connection can be closed
+          if(exchange.getResponseCode() == -1) {
+            respond(exchange, 500, "{\"error\": "+ImportMetrics.quote(String.valueOf(e.getMessage()))+"}");
+          } else {
+            System.out.println("Problem after responding to "+exchange.getRequestMethod()+" "+exchange.getRequestURI()+": "+e);
+          }
+        } finally {
+          exchange.close();
+        }
+      }
+    });
+    server.start();
+    System.out.println("Import server listening on http://localhost:"+getPort());
+  }
+
+  public int getPort() {
+    return server.getAddress().getPort();
+  }
+
+  /**
+   * Largest xmi that can be posted, DEFAULT_MAX_UPLOAD_BYTES by default
+   *
+   * @param maxUploadBytes
+   */
+  public void setMaxUploadBytes(long maxUploadBytes) {
+    this.maxUploadBytes = maxUploadBytes;
+  }
+
+  /**
+   * Stops accepting requests and waits for the running imports, the queued imports are dropped and fail
+   */
+  public void stop() {
+    if(server != null) {
+      server.stop(0);
+      requests.shutdown();
+    }
+    workers.getQueue().clear();
+    workers.shutdown();
+    for(Job job : getJobs()) {
+      job.drop();
+    }
+    try {
+      workers.awaitTermination(1, TimeUnit.MINUTES);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Queues the import of a file, the file is deleted when the import is finished
+   *
+   * @throws RejectedExecutionException when the queue is full
+   */
+  public Job submit(File file, String datasetId, boolean streaming) {
+    final Job job = new Job(ids.incrementAndGet(), file, datasetId, streaming);
+    synchronized (jobs) {
+      jobs.put(job.id, job);
+      forgetFinishedJobs();
+    }
+    try {
+      workers.execute(new Runnable() {
+        @Override
+        public void run() {
+          job.run();
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      synchronized (jobs) {
+        jobs.remove(job.id);
+      }
+      throw e;
+    }
+    return job;
+  }
+
+  public Job getJob(long id) {
+    synchronized (jobs) {
+      return jobs.get(id);
+    }
+  }
+
+  public List<Job> getJobs() {
+    synchronized (jobs) {
+      return new ArrayList<>(jobs.values());
+    }
+  }
+
+  private void forgetFinishedJobs() {
+    Iterator<Job> iterator = jobs.values().iterator();
+    while(jobs.size() > MAX_JOBS && iterator.hasNext()) {
+      Status status = iterator.next().status;
+      if(status == Status.DONE || status == Status.FAILED) {
+        iterator.remove();
+      }
+    }
+  }
+
+
+
+  private void route(HttpExchange exchange) throws IOException {
+    String method = exchange.getRequestMethod();
+    String path = exchange.getRequestURI().getPath();
+
+    if("/imports".equals(path) && "POST".equals(method)) {
+      Map<String, String> parameters = parameters(exchange.getRequestURI().getRawQuery());
+      String datasetId = parameters.get("dataset");
+      if(datasetId == null || datasetId.isEmpty()) {
+        respond(exchange, 400, "{\"error\": \"The dataset parameter is required\"}");
+        return;
+      }
+      String length = exchange.getRequestHeaders().getFirst("Content-Length");
+      if(length != null && Long.parseLong(length) > maxUploadBytes) {
+        respond(exchange, 413, "{\"error\": \"The xmi is larger than "+maxUploadBytes+" bytes\"}");
+        return;
+      }
+      File file = File.createTempFile("import-", ".xmi");
+      boolean stored = false;
+      try (InputStream body = exchange.getRequestBody(); OutputStream out = Files.newOutputStream(file.toPath())) {
+        stored = copy(body, out, maxUploadBytes);
+      } finally {
+        if(!stored) {
+          Files.deleteIfExists(file.toPath());
+        }
+      }
+      if(!stored) {
+        respond(exchange, 413, "{\"error\": \"The xmi is larger than "+maxUploadBytes+" bytes\"}");
+        return;
+      }
+      try {
+        Job job = submit(file, datasetId, "true".equals(parameters.get("streaming")));
+        exchange.getResponseHeaders().set("Location", "/imports/"+job.id);
+        respond(exchange, 202, job.toJson(false));
+      } catch (RejectedExecutionException e) {
+        Files.deleteIfExists(file.toPath());
+        respond(exchange, 503, "{\"error\": \"The import queue is full\"}");
+      }
+      return;
+    }
+
+    if(!"GET".equals(method)) {
+      respond(exchange, 405, "{\"error\": \"Method "+method+" not allowed\"}");
+      return;
+    }
+
+    if("/imports".equals(path)) {
+      List<String> entries = new ArrayList<>();
+      for(Job job : getJobs()) {
+        entries.add(job.toJson(false));
+      }
+      respond(exchange, 200, "["+join(entries)+"]");
+      return;
+    }
+
+    if(path.startsWith("/imports/")) {
+      Job job = null;
+      try {
+        job = getJob(Long.parseLong(path.substring("/imports/".length())));
+      } catch (NumberFormatException e) {
+        // not a job id
+      }
+      if(job == null) {
+        respond(exchange, 404, "{\"error\": \"No job "+path.substring("/imports/".length())+"\"}");
+        return;
+      }
+      respond(exchange, 200, job.toJson(true));
+      return;
+    }
+
+    if("/metrics".equals(path)) {
+      respond(exchange, 200, metricsJson());
+      return;
+    }
+
+    respond(exchange, 404, "{\"error\": \"Not found\"}");
+  }
+
+  private String metricsJson() {
+    HashMap<Status, Integer> counts = new HashMap<>();
+    for(Status status : Status.values()) {
+      counts.put(status, 0);
+    }
+    for(Job job : getJobs()) {
+      counts.put(job.status, counts.get(job.status) + 1);
+    }
+    List<String> entries = new ArrayList<>();
+    for(Status status : Status.values()) {
+      entries.add("\""+status.name().toLowerCase()+"\": "+counts.get(status));
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return "{\n" +
+      "  \"uptimeMs\": "+(System.currentTimeMillis() - startedAt)+",\n" +
+      "  \"workers\": "+workerCount+",\n" +
+      "  \"activeWorkers\": "+workers.getActiveCount()+",\n" +
+      "  \"queued\": "+workers.getQueue().size()+",\n" +
+      "  \"jobs\": {"+join(entries)+"},\n" +
+      "  \"entities\": "+entities.get()+",\n" +
+      "  \"heapUsedBytes\": "+(runtime.totalMemory() - runtime.freeMemory())+"\n" +
+      "}\n";
+  }
+
+  private static Map<String, String> parameters(String query) throws IOException {
+    HashMap<String, String> parameters = new HashMap<>();
+    if(query == null) {
+      return parameters;
+    }
+    for(String parameter : query.split("&")) {
+      int separator = parameter.indexOf('=');
+      if(separator > 0) {
+        parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"), URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+      }
+    }
+    return parameters;
+  }
+
+  /**
+   * @return false when the input is longer than limit, the copy is incomplete then
+   */
+  private static boolean copy(InputStream in, OutputStream out, long limit) throws IOException {
+    byte[] buffer = new byte[64 * 1024];
+    long copied = 0;
+    for(int read; (read = in.read(buffer)) > 0; ) {
+      copied += read;
+      if(copied > limit) {
+        return false;
+      }
+      out.write(buffer, 0, read);
+    }
+    return true;
+  }
+
+  private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+    byte[] body = json.getBytes(StandardCharsets.UTF_8);
+    exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(status, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+  }
+
+  private static String join(List<String> values) {
+    StringBuilder joined = new StringBuilder();
+    for(String value : values) {
+      if(joined.length() > 0) {
+        joined.append(", ");
+      }
+      joined.append(value);
+    }
+    return joined.toString();
+  }
+
+
+
+  /**
+   * One queued import
+   */
+  public class Job {
+
+    private final long id;
+    private final File file;
+    private final String datasetId;
+    private final boolean streaming;
+    private final long submittedAt = System.currentTimeMillis();
+    private volatile Status status = Status.QUEUED;
+    private volatile ImportMetrics metrics;      // the import itself is not kept, it holds the whole model
+    private volatile String error;
+
+    private Job(long id, File file, String datasetId, boolean streaming) {
+      this.id = id;
+      this.file = file;
+      this.datasetId = datasetId;
+      this.streaming = streaming;
+    }
+
+    private void run() {
+      synchronized (this) {
+        if(status != Status.QUEUED) {
+          return;
+        }
+        status = Status.RUNNING;
+      }
+      try {
+        ImportXmi importXmi = new ImportXmi(sink, datasetId);
+        importXmi.setStreaming(streaming);
+        metrics = importXmi.getMetrics();
+        importXmi.readFromFile(file.getPath());
+        importXmi.run();
+        entities.addAndGet(importXmi.getMetrics().getEntities());
+        status = Status.DONE;
+      } catch (RuntimeException e) {
+        error = String.valueOf(e.getMessage());
+        status = Status.FAILED;
+        System.out.println("Import job "+id+" into "+datasetId+" failed: "+e);
+      } catch (Error e) {
+        // For example an OutOfMemoryError, the job is not left running and the worker thread handles the error
+        error = String.valueOf(e);
+        status = Status.FAILED;
+        System.out.println("Import job "+id+" into "+datasetId+" failed: "+e);
+        throw e;
+      } finally {
+        if(!file.delete()) {
+          file.deleteOnExit();
+        }
+      }
+    }
+
+    /**
+     * Fails the job and removes its file, unless it already started
+     */
+    private synchronized void drop() {
+      if(status != Status.QUEUED) {
+        return;
+      }
+      error = "The server stopped before the import started";
+      status = Status.FAILED;
+      if(!file.delete()) {
+        file.deleteOnExit();
+      }
+    }
+
+    public long getId() {
+      return id;
+    }
+
+    public String getDatasetId() {
+      return datasetId;
+    }
+
+    public Status getStatus() {
+      return status;
+    }
+
+    public String getError() {
+      return error;
+    }
+
+    /**
+     * @return the metrics of the import, null while the job is queued
+     */
+    public ImportMetrics getMetrics() {
+      return metrics;
+    }
+
+    String toJson(boolean withMetrics) {
+      StringBuilder json = new StringBuilder();
+      json.append("{\"id\": ").append(id);
+      json.append(", \"dataset\": ").append(ImportMetrics.quote(datasetId));
+      json.append(", \"status\": \"").append(status.name().toLowerCase()).append('"');
+      json.append(", \"submittedAt\": ").append(submittedAt);
+      if(error != null) {
+        json.append(", \"error\": ").append(ImportMetrics.quote(error));
+      }
+      ImportMetrics metrics = getMetrics();
+      if(withMetrics && metrics != null) {
+        json.append(", \"metrics\": ").append(metrics.toJson().trim());
+      }
+      return json.append("}").toString();
+    }
+  }
+}
@@ -0,0 +1,49 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.Map;
+
+/**
+ * Destination of the entities and links an import writes, the WritePipeline executes its operations on a sink.
+ *
+ * Entities are referred to by id. Implementations are called concurrently by the threads of a pipeline.
+ */
+public interface ImportSink {
+
+  /**
+   * @param id null to let the sink generate one
+   * @param relations relation key -> id of an existing entity, null for none
+   * @return the id of the new entity
+   */
+  String add(Map<String, String> attributes, String type, String id, Map<String, String> relations);
+
+  /**
+   * @return the id of a new, empty collection
+   */
+  String collection();
+
+  /**
+   * Looks up an existing entity
+   *
+   * @return the type of the entity
+   * @throws RuntimeException when the entity does not exist
+   */
+  String get(String id);
+
+  /**
+   * Looks up the dataset entity, with the relations objects, predicates and models to its collections
+   *
+   * @return the id of the dataset entity
+   */
+  String dataset(String datasetId);
+
+  /**
+   * @return the id of the entity the relation with this key of the entity points to, null if there is none
+   */
+  String relation(String id, String key);
+
+  void link(String parentId, String key, String childId);
+
+  void updateLink(String parentId, String key, String childId);
+
+  void close();
+}
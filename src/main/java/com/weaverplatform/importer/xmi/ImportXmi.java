@@ -1,11 +1,7 @@
 package com.weaverplatform.importer.xmi;
 
-import com.weaverplatform.sdk.Entity;
 import com.weaverplatform.sdk.Weaver;
-import com.weaverplatform.sdk.model.Dataset;
 import com.weaverplatform.sdk.websocket.WeaverSocket;
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.IOUtils;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
@@ -14,18 +10,22 @@ import javax.xml.XMLConstants;
 import javax.xml.namespace.NamespaceContext;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.xpath.XPath;
-import javax.xml.xpath.XPathConstants;
-import javax.xml.xpath.XPathExpressionException;
-import javax.xml.xpath.XPathFactory;
-import java.io.ByteArrayInputStream;
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.Iterator;
 
 /**
@@ -33,42 +33,177 @@ import java.util.Iterator;
  */
 public class ImportXmi {
 
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final int REPLAY_BATCH_SIZE = 1000;
+
+  public static final String DEFAULT_SOURCE = "xmiImporter";
+
   private Weaver weaver;
+  private ImportSink sink;
   private String weaverUrl;
   private String datasetId;
-  public static String source = "xmiImporter";
-  private Entity dataset;
-  private InputStream inputStream;
-  private static Document xmldocument;
+  private String source = DEFAULT_SOURCE;
+  private Document xmldocument;
+  private XmiIndex index;
+  private boolean streaming = false;
 
   private HashMap<String, String> xmiClasses;                     // XMI_ID -> individualId
   private HashMap<String, String> xmiValueClasses;                // XMI_ID -> datatype (e.g. xsd:string)
-  private HashMap<String, Entity> individuals;                    // individualId -> Individual entity
-  private HashMap<String, Entity> views = new HashMap<>();        // individualId -> View entity
+  private Map<String, EntityRef> individuals;                     // individualId -> Individual entity
+  private HashMap<String, EntityRef> views = new HashMap<>();     // individualId -> View entity
 
-  private HashMap<String, Entity> predicates;
+  private HashMap<String, EntityRef> predicates;
+
+  private int batchSize = WritePipeline.DEFAULT_BATCH_SIZE;
+  private int individualWindow = 0;
+  private File manifest;
+  private File operationLog;
+  private File journal;
+  private boolean resume;
+  private File report;
+  private final ImportMetrics metrics = new ImportMetrics();
 
 
 
   public ImportXmi(Weaver weaver, String datasetId) {
     this.datasetId = datasetId;
     this.weaver = weaver;
+    this.sink = weaver != null ? new WeaverSink(weaver) : null;
   }
 
   public ImportXmi(String weaverUrl, String datasetId) {
+    this(weaverUrl, datasetId, 1);
+  }
+
+  /**
+   * @param connections number of connections to open, writes are spread over them (see WeaverPoolSink)
+   */
+  public ImportXmi(String weaverUrl, String datasetId, int connections) {
     this.weaverUrl = weaverUrl;
     this.datasetId = datasetId;
 
-    this.weaver = new Weaver("ins:");
-    this.weaver.connect(new WeaverSocket(URI.create(weaverUrl)));
+    if(connections > 1) {
+      WeaverPoolSink pool = WeaverPoolSink.connect(weaverUrl, connections);
+      this.weaver = pool.getConnections().get(0);
+      this.sink = pool;
+    } else {
+      this.weaver = new Weaver("ins:");
+      this.weaver.connect(new WeaverSocket(URI.create(weaverUrl)));
+      this.sink = new WeaverSink(weaver);
+    }
+  }
+
+  /**
+   * Imports into another destination than a Weaver server, e.g. a MemorySink or CountingSink
+   */
+  public ImportXmi(ImportSink sink, String datasetId) {
+    this.datasetId = datasetId;
+    this.sink = sink;
+  }
+
+  /**
+   * Number of Weaver operations that are collected before they are written together
+   *
+   * @param batchSize
+   */
+  public void setBatchSize(int batchSize) {
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Number of individuals that are written concurrently, 0 (default) to write them in batches
+   *
+   * @param individualWindow
+   */
+  public void setIndividualWindow(int individualWindow) {
+    this.individualWindow = individualWindow;
+  }
+
+  /**
+   * Enables incremental imports: the fingerprints of the imported elements are stored in this file and a
+   * next run only writes the elements that were added or changed since, a model from which elements were
+   * removed is refused (see XmiDelta). Can not be combined with an operation log, nothing is written to
+   * Weaver then.
+   *
+   * @param manifest
+   */
+  public void setManifest(File manifest) {
+    this.manifest = manifest;
+  }
+
+  /**
+   * Writes the import as a plan to this file instead of to Weaver, see OperationLog.replay
+   *
+   * @param operationLog
+   */
+  public void setOperationLog(File operationLog) {
+    this.operationLog = operationLog;
+  }
+
+  /**
+   * Records every completed Weaver write in this file, the file is removed when the import succeeds
+   *
+   * @param journal
+   * @param resume skip the writes recorded by a previous (failed) run of the same model and continue from there
+   */
+  public void setJournal(File journal, boolean resume) {
+    this.journal = journal;
+    this.resume = resume;
+  }
+
+  /**
+   * Writes the metrics of every run to this file as JSON, see ImportMetrics
+   *
+   * @param report
+   */
+  public void setReport(File report) {
+    this.report = report;
+  }
+
+  /**
+   * Receives the stage times and operation latencies of the import
+   *
+   * @param listener
+   */
+  public void addListener(ImportListener listener) {
+    metrics.addListener(listener);
   }
 
+  /**
+   * The value of the source attribute of every entity this import writes
+   *
+   * @param source
+   */
   public void setSource(String source) {
     this.source = source;
   }
 
+  /**
+   * When streaming, the xmi is read with StAX and only the elements that are mapped to Weaver objects are kept
+   * in memory (see XmiStreamReader), instead of building the dom of the whole file.
+   *
+   * @param streaming
+   */
+  public void setStreaming(boolean streaming) {
+    this.streaming = streaming;
+  }
+
+  public boolean isStreaming() {
+    return streaming;
+  }
+
   public void readFromInputStream(InputStream inputStream) {
 
+    long then = System.nanoTime();
+    metrics.parseStarted();
+    xpathCaches.clear();
+    if(streaming) {
+      xmldocument = new XmiStreamReader().read(inputStream);
+      index = XmiIndex.build(xmldocument);
+      metrics.stageFinished("parse", System.nanoTime() - then);
+      return;
+    }
+
     DocumentBuilderFactory domFactory;
     DocumentBuilder builder;
 
@@ -76,65 +211,71 @@ public class ImportXmi {
       domFactory = DocumentBuilderFactory.newInstance();
       domFactory.setNamespaceAware(true);
       builder = domFactory.newDocumentBuilder();
-      this.inputStream = inputStream;
       xmldocument = builder.parse(inputStream);
+      index = XmiIndex.build(xmldocument);
     } catch (Exception e) {
       throw new RuntimeException("Problem reading inputStream", e);
     }
+    metrics.stageFinished("parse", System.nanoTime() - then);
   }
 
+  /**
+   * Streams the file through a buffered channel, the file is never copied into the heap as a whole.
+   *
+   * @param path
+   */
   public void readFromFile(String path) {
-    try {
-      File f = new File(path);
-      if (f.exists()) {
-        byte[] content = Files.readAllBytes(Paths.get(f.getAbsolutePath()));
-
-        readFromInputStream(new ByteArrayInputStream(IOUtils.toByteArray(new ByteArrayInputStream(content))));
+    Path file = Paths.get(path).toAbsolutePath();
+    if(!Files.isRegularFile(file)) {
+      throw new RuntimeException("File "+path+" not found!");
+    }
 
-      } else {
-        throw new RuntimeException("File "+path+" not found!");
-      }
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+         InputStream stream = new BufferedInputStream(Channels.newInputStream(channel), READ_BUFFER_SIZE)) {
+      readFromInputStream(stream);
     } catch (IOException e) {
-      throw new RuntimeException("FileUtils.readAllBytes fail");
+      throw new RuntimeException("Problem reading file "+path, e);
     }
   }
 
+  /**
+   * Streams the resource from the classpath, this also works when the resource is packaged in a jar.
+   *
+   * @param path
+   */
   public void readFromResources(String path) {
+    InputStream resource = getClass().getClassLoader().getResourceAsStream(path);
+    if(resource == null) {
+      throw new RuntimeException("Resource "+path+" not found!");
+    }
 
-    try {
-      byte[] content =  FileUtils.readFileToByteArray(new File(getClass().getClassLoader().getResource(path).getFile()));
-      readFromInputStream(new ByteArrayInputStream(IOUtils.toByteArray(new ByteArrayInputStream(content))));
-
+    try (InputStream stream = new BufferedInputStream(resource, READ_BUFFER_SIZE)) {
+      readFromInputStream(stream);
     } catch (IOException e) {
-      throw new RuntimeException("FileUtils.readFileToByteArray fail");
+      throw new RuntimeException("Problem reading resource "+path, e);
     }
   }
 
+  // Compiled expressions per thread id, they are dropped when a new document is read and when a run ends.
+  // Not a ThreadLocal, its entries would keep the document alive on long-lived threads (see ImportServer).
+  private final ConcurrentHashMap<Long, XPathCache> xpathCaches = new ConcurrentHashMap<>();
 
-
-
-
-
-
-  
-  public static NodeList queryXPath(Node node, String query) {
-    XPath xpath = XPathFactory.newInstance().newXPath();
-    xpath.setNamespaceContext(new NamespaceResolver(xmldocument));
-    try {
-      return (NodeList) xpath.evaluate(query, node, XPathConstants.NODESET);
-    } catch (XPathExpressionException e) {
-      throw new RuntimeException("XPath query could not be executed.", e);
+  private XPathCache xpathCache() {
+    long thread = Thread.currentThread().getId();
+    XPathCache cache = xpathCaches.get(thread);
+    if(cache == null || cache.getDocument() != xmldocument) {
+      cache = new XPathCache(xmldocument);
+      xpathCaches.put(thread, cache);
     }
+    return cache;
   }
 
-  public static NodeList queryXPath(String query) {
-    XPath xpath = XPathFactory.newInstance().newXPath();
-    xpath.setNamespaceContext(new NamespaceResolver(xmldocument));
-    try {
-      return (NodeList) xpath.evaluate(query, xmldocument, XPathConstants.NODESET);
-    } catch (XPathExpressionException e) {
-      throw new RuntimeException("XPath query could not be executed.", e);
-    }
+  public NodeList queryXPath(Node node, String query) {
+    return xpathCache().evaluate(query, node);
+  }
+
+  public NodeList queryXPath(String query) {
+    return xpathCache().evaluate(query, xmldocument);
   }
 
   /**
@@ -143,30 +284,202 @@ public class ImportXmi {
    * @throws IOException
    */
   public void run() {
+    run(null);
+  }
+
+  /**
+   * Reads the model while it is written, instead of reading it completely first (see StreamingStage). The
+   * individuals are written while the stream is read, the other elements after the end of the stream. A
+   * broken class hierarchy is therefore only detected after the individuals are written (the generalizations
+   * are not), and a manifest, operation log or journal can not be used, they need the complete model up front.
+   *
+   * @param inputStream the xmi, not closed
+   */
+  public void runPipelined(InputStream inputStream) {
+    if(manifest != null || operationLog != null || journal != null) {
+      throw new IllegalStateException("A pipelined import can not be combined with a manifest, an operation log or a journal.");
+    }
+    xmldocument = null;
+    xpathCaches.clear();
+    index = new XmiIndex();
+    metrics.parseStarted();
+    run(inputStream);
+  }
 
-    // Init dataset
-    dataset = new Dataset(weaver, datasetId).get(datasetId);
+  private void run(InputStream stream) {
+    if(manifest != null && operationLog != null) {
+      throw new IllegalStateException("A manifest can not be combined with an operation log, the plan is not written to Weaver.");
+    }
 
     // Init lists of all classes
     xmiClasses = new HashMap<>();
     xmiValueClasses = new HashMap<>();
 
-    PredicateCreator predicateCreator = new PredicateCreator(weaver, dataset);
-    predicates = predicateCreator.run();
+    final XmiDelta delta = manifest != null ? new XmiDelta(XmiManifest.load(manifest), XmiManifest.of(index)) : XmiDelta.full();
+    if(manifest != null) {
+      delta.validate(index);
+    }
+
+    long then = System.nanoTime();
+    metrics.importStarted();
+
+    // Reject a model with a broken class hierarchy before anything is written
+    ClassHierarchy hierarchy = null;
+    if(stream == null) {
+      hierarchy = validateHierarchy();
+    }
+
+    ExecutorService stageExecutor = Executors.newCachedThreadPool();
+    ExecutorService writeExecutor = Executors.newFixedThreadPool(WritePipeline.DEFAULT_PARALLELISM);
+    OperationLog log = operationLog != null ? OperationLog.create(operationLog) : null;
+    Journal writes = journal != null && log == null ? Journal.open(journal, resume, XmiManifest.of(index).getModelFingerprint()) : null;
+    boolean completed = false;
+    try {
+      // Init dataset and fetch its collections once, all creators link to these
+      WritePipeline datasetPipeline = pipeline("dataset", log, writes, writeExecutor);
+      EntityRef dataset = datasetPipeline.dataset(datasetId);
+      EntityRef objects = datasetPipeline.get(dataset, "objects");
+      EntityRef predicatesCollection = datasetPipeline.get(dataset, "predicates");
+      EntityRef models = datasetPipeline.get(dataset, "models");
+      datasetPipeline.flush();
+
+      // Every stage writes through its own pipeline, so concurrent stages do not flush each others batches
+      WritePipeline predicatePipeline = pipeline("predicates", log, writes, writeExecutor);
+      WritePipeline individualPipeline = pipeline("individuals", log, writes, writeExecutor);
+      final PredicateCreator predicateCreator = new PredicateCreator(predicatePipeline, index, predicatesCollection);
+      final IndividualCreator individualCreator = new IndividualCreator(individualPipeline, index, xmiClasses, xmiValueClasses, null, objects);
+      predicateCreator.setDelta(delta);
+      predicateCreator.setSource(source);
+      predicateCreator.setListener(metrics);
+      individualCreator.setListener(metrics);
+      individualCreator.setPropertyIds(new PropertyIds(datasetId));
+      individualCreator.setDelta(delta);
+      individualCreator.setSource(source);
+      individualCreator.setWindow(individualWindow);
+      final ViewCreator viewCreator = new ViewCreator(pipeline("views", log, writes, writeExecutor), index, xmiClasses, xmiValueClasses, models);
+      viewCreator.setDelta(delta);
+      viewCreator.setSource(source);
+      viewCreator.setListener(metrics);
+
+      if(stream != null) {
+        // The individuals refer to these, so they are written before the stream is read
+        predicates = predicateCreator.createBuiltins();
+        predicatePipeline.flush();
+        individualCreator.setPredicates(predicates);
+        individualCreator.createRdfsClass();
+        individualPipeline.flush();
+
+        new StreamingStage(index, individualCreator, viewCreator, stageExecutor, metrics).run(stream);
+        hierarchy = validateHierarchy();
+      }
+      individualCreator.setHierarchy(hierarchy);
+
+      StageGraph stages = new StageGraph(stageExecutor);
+      stages.add("predicates", new Runnable() {
+        @Override
+        public void run() {
+          predicates = predicateCreator.run();
+        }
+      });
+      stages.add("classes", new Runnable() {
+        @Override
+        public void run() {
+          individualCreator.mapXmiClasses();
+        }
+      });
+      stages.add("individuals", new Runnable() {
+        @Override
+        public void run() {
+          individualCreator.setPredicates(predicates);
+          individuals = individualCreator.run();
+        }
+      }, "predicates", "classes");
+      stages.add("domains", new Runnable() {
+        @Override
+        public void run() {
+          predicateCreator.setDomainAndRange(individuals);
+        }
+      }, "individuals");
+      stages.add("views", new Runnable() {
+        @Override
+        public void run() {
+          views = viewCreator.run();
+        }
+      }, "classes");
+      stages.run();
+
+      if(manifest != null) {
+        delta.toManifest().save(manifest);
+      }
+
+      metrics.importFinished(System.nanoTime() - then);
+      System.out.println(metrics.summary());
+      if(report != null) {
+        metrics.writeReport(report);
+      }
+      completed = true;
+
+    } finally {
+      xpathCaches.clear();
+      stageExecutor.shutdown();
+      writeExecutor.shutdown();
+      if(log != null) {
+        log.close();
+      }
+      if(writes != null) {
+        if(writes.getSkipped() > 0) {
+          System.out.println("Resumed import, skipped "+writes.getSkipped()+" completed writes");
+        }
+        if(completed) {
+          writes.delete();
+        } else {
+          writes.close();
+        }
+      }
+    }
+  }
 
-    IndividualCreator individualCreator = new IndividualCreator(weaver, xmiClasses, xmiValueClasses, predicates, dataset);
-    individuals = individualCreator.run();
+  private ClassHierarchy validateHierarchy() {
+    long then = System.nanoTime();
+    ClassHierarchy hierarchy = ClassHierarchy.build(index);
+    hierarchy.validate();
+    metrics.stageFinished("hierarchy", System.nanoTime() - then);
+    return hierarchy;
+  }
 
-//    predicateCreator.setDomainAndRange(individuals);
+  private WritePipeline pipeline(String name, OperationLog log, Journal journal, ExecutorService writeExecutor) {
+    if(log != null) {
+      return new WritePipeline(log);
+    }
+    WritePipeline pipeline = new WritePipeline(sink, batchSize, writeExecutor);
+    pipeline.setListener(metrics);
+    if(journal != null) {
+      pipeline.setJournal(journal, name);
+    }
+    return pipeline;
+  }
 
-    ViewCreator viewCreator = new ViewCreator(weaver, xmiClasses, xmiValueClasses, dataset);
-    views = viewCreator.run();
+  /**
+   * Writes a plan made with setOperationLog to Weaver
+   *
+   * @param operationLog
+   * @return the number of replayed operations
+   */
+  public long replay(File operationLog) {
+    WritePipeline pipeline = new WritePipeline(sink, REPLAY_BATCH_SIZE);
+    try {
+      return OperationLog.replay(operationLog, pipeline, datasetId);
+    } finally {
+      pipeline.close();
+    }
   }
 
   public void close() {
 
     // Close Weaver connection
-    weaver.close();
+    if(sink != null) {
+      sink.close();
+    }
   }
 
 
@@ -174,22 +487,32 @@ public class ImportXmi {
 
 
 
-  public Weaver getWeaver() {
-    return weaver;
+  public String getSource() {
+    return source;
   }
 
-  public String getWeaverUrl() {
-    return weaverUrl;
+  public Document getDocument() {
+    return xmldocument;
   }
 
+  public ImportMetrics getMetrics() {
+    return metrics;
+  }
+
+  public XmiIndex getIndex() {
+    return index;
+  }
 
+  public Weaver getWeaver() {
+    return weaver;
+  }
 
-  public InputStream getInputStream() {
-    return inputStream;
+  public ImportSink getSink() {
+    return sink;
   }
 
-  public void setInputStream(InputStream inputStream) {
-    this.inputStream = inputStream;
+  public String getWeaverUrl() {
+    return weaverUrl;
   }
 
 
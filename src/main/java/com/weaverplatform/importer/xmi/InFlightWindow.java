@@ -0,0 +1,106 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Runs tasks with at most a fixed number of them in flight.
+ *
+ * submit() blocks while the window is full, so the producer can never run ahead of Weaver by more than the
+ * window size. The first failure is rethrown by submit() or await(). A window that is not awaited, for
+ * example because submit() threw, has to be closed to release its threads.
+ */
+public class InFlightWindow {
+
+  public static final String THREAD_NAME = "in-flight-window";
+
+  private final int size;
+  private final Semaphore permits;
+  private final ExecutorService executor;
+  private volatile Throwable failure;
+
+  public InFlightWindow(int size) {
+    if(size < 1) {
+      throw new IllegalArgumentException("Window size should be at least 1");
+    }
+    this.size = size;
+    this.permits = new Semaphore(size);
+    this.executor = Executors.newFixedThreadPool(size, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        return new Thread(runnable, THREAD_NAME);
+      }
+    });
+  }
+
+  public void submit(final Runnable task) {
+    rethrow();
+    try {
+      permits.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for a free slot", e);
+    }
+
+    try {
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            task.run();
+          } catch (Throwable t) {
+            if(failure == null) {
+              failure = t;
+            }
+          } finally {
+            permits.release();
+          }
+        }
+      });
+    } catch (RejectedExecutionException e) {
+      permits.release();
+      throw new IllegalStateException("The window is closed and accepts no new tasks", e);
+    }
+  }
+
+  /**
+   * Waits for all submitted tasks and releases the threads, the window can not be used after this
+   */
+  public void await() {
+    try {
+      permits.acquire(size);
+      permits.release(size);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while waiting for tasks in flight", e);
+    } finally {
+      executor.shutdown();
+    }
+    rethrow();
+  }
+
+  /**
+   * Releases the threads without waiting, tasks in flight are finished but no new tasks are accepted
+   */
+  public void close() {
+    executor.shutdown();
+  }
+
+  public boolean isClosed() {
+    return executor.isShutdown();
+  }
+
+  private void rethrow() {
+    Throwable error = failure;
+    if(error == null) {
+      return;
+    }
+    if(error instanceof RuntimeException) {
+      throw (RuntimeException) error;
+    }
+    throw new RuntimeException("Task in flight failed", error);
+  }
+}
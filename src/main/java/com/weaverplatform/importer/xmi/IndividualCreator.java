@@ -1,18 +1,10 @@
 package com.weaverplatform.importer.xmi;
 
-import com.weaverplatform.sdk.Entity;
 import com.weaverplatform.sdk.EntityType;
-import com.weaverplatform.sdk.ShallowEntity;
-import com.weaverplatform.sdk.Weaver;
-import org.w3c.dom.NamedNodeMap;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 
-import java.text.Normalizer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-import java.util.regex.Pattern;
 
 /**
  * This program is written to import xmi-data and map parts of it to Weaver objects by the weaver-sdk-java.
@@ -24,66 +16,163 @@ public class IndividualCreator {
   public static final String XPATH_TO_XMI_GENERALIZATIONS = "//UML:Generalization";
   public static final String XPATH_TO_XMI_DATATYPE = "UML:Attribute[@name='DataType']//UML:TaggedValue[@tag='type']";
 
-  private Weaver weaver;
-  private Entity dataset;
+  private WritePipeline pipeline;
+  private EntityRef objects;
+  private XmiIndex index;
 
   private HashMap<String, String> xmiClasses;                     // XMI_ID -> individualId
   private HashMap<String, String> xmiValueClasses;                // XMI_ID -> datatype (e.g. xsd:string)
+  private HashMap<String, String> names = new HashMap<>();        // XMI_ID -> name, differs from the individualId of a renamed class
 
-  private HashMap<String, Entity> individuals = new HashMap<>();
-  private HashMap<String, Entity> predicates;
+  private ConcurrentHashMap<String, EntityRef> individuals = new ConcurrentHashMap<>();
+  private ConcurrentHashMap<String, EntityRef> propertyCollections = new ConcurrentHashMap<>();   // individualId -> properties collection
+  private HashMap<String, EntityRef> predicates;
 
-  public IndividualCreator(Weaver weaver, HashMap<String, String> xmiClasses, HashMap<String, String> xmiValueClasses, HashMap<String, Entity> predicates, Entity dataset) {
+  private XmiDelta delta = XmiDelta.full();
+  private ImportListener listener = ImportListener.NONE;
+  private String source = ImportXmi.DEFAULT_SOURCE;
+  private PropertyIds propertyIds = new PropertyIds(null);
+  private ClassHierarchy hierarchy;
+  private int window = 0;                                         // individuals in flight, 0 to write in batches
 
-    this.weaver = weaver;
+  public IndividualCreator(WritePipeline pipeline, XmiIndex index, HashMap<String, String> xmiClasses, HashMap<String, String> xmiValueClasses, HashMap<String, EntityRef> predicates, EntityRef objects) {
+
+    this.pipeline = pipeline;
+    this.index = index;
 
     this.xmiClasses = xmiClasses;
     this.xmiValueClasses = xmiValueClasses;
     this.predicates = predicates;
 
-    this.dataset = dataset;
+    this.objects = objects;
+  }
+
+  public void setPredicates(HashMap<String, EntityRef> predicates) {
+    this.predicates = predicates;
   }
 
+  /**
+   * Only write the classes and generalizations that changed since the previous import, and update the
+   * entities of the changed ones that were written before
+   *
+   * @param delta
+   */
+  public void setDelta(XmiDelta delta) {
+    this.delta = delta;
+  }
 
-  public HashMap<String, Entity> run() {
+  public void setListener(ImportListener listener) {
+    this.listener = listener;
+  }
 
+  /**
+   * The value of the source attribute of the entities this creator writes
+   *
+   * @param source
+   */
+  public void setSource(String source) {
+    this.source = source;
+  }
 
+  /**
+   * Derives the ids of the properties, should be created for the dataset that is imported into
+   *
+   * @param propertyIds
+   */
+  public void setPropertyIds(PropertyIds propertyIds) {
+    this.propertyIds = propertyIds;
+  }
+
+  /**
+   * The validated hierarchy of the model, built from the index when it is not set
+   *
+   * @param hierarchy
+   */
+  public void setHierarchy(ClassHierarchy hierarchy) {
+    this.hierarchy = hierarchy;
+  }
+
+  /**
+   * Creates the individuals with this many of them in flight at the same time, instead of in batches
+   *
+   * @param window
+   */
+  public void setWindow(int window) {
+    this.window = window;
+  }
 
-    long then, now;
 
-    // Because we have formatted Jcabi XMLDocument, we can have special xpaths to the nodes we want
-    // map the xmi classes to a hashmap
-    // let jcabi fetch the xmi class nodes by the right xpath
+  public Map<String, EntityRef> run() {
 
-    then = new Date().getTime();
-    mapXmiClasses();
-    now = new Date().getTime();
-    System.out.println(now - then);
 
 
+    // The xmi classes are mapped by mapXmiClasses() before this stage runs
 
-    then = new Date().getTime();
+    long then = System.nanoTime();
 
     // Individuals and Views
-    individuals.put("rdfs:Class", toWeaverIndividual("rdfs:Class", false));
+    createRdfsClass();
+    pipeline.flush();
 
-    Iterator<Map.Entry<String, String>> iterator = xmiClasses.entrySet().iterator();
-    while (iterator.hasNext()) {
-      Map.Entry<String, String> pair = iterator.next();
-      String xmiClassName = pair.getValue();
+    InFlightWindow inFlight = window > 0 ? new InFlightWindow(window) : null;
 
-      if(!individuals.containsKey(xmiClassName)) {
-        individuals.put(xmiClassName, toWeaverIndividual(xmiClassName, true));
+    try {
+      Iterator<Map.Entry<String, String>> iterator = xmiClasses.entrySet().iterator();
+      while (iterator.hasNext()) {
+        Map.Entry<String, String> pair = iterator.next();
+        String xmiClassName = pair.getValue();
+        String classKey = XmiManifest.classKey(pair.getKey());
+
+        if(!delta.isChanged(classKey)) {
+          continue;
+        }
+
+        // Written by a previous import
+        if(delta.exists(xmiClassName)) {
+          relabel(classKey, xmiClassName, names.get(pair.getKey()));
+          continue;
+        }
+
+        if(!individuals.containsKey(xmiClassName)) {
+          delta.created(xmiClassName);
+          delta.written(classKey, XmiManifest.INDIVIDUAL, xmiClassName);
+          delta.written(classKey, XmiManifest.TYPE, propertyIds.id(EntityType.INDIVIDUAL_PROPERTY, xmiClassName, "rdfs:label", "rdfs:Class"));
+          delta.written(classKey, XmiManifest.LABEL, propertyIds.id(EntityType.VALUE_PROPERTY, xmiClassName, "rdfs:label", xmiClassName));
+          if(inFlight == null) {
+            individuals.put(xmiClassName, toWeaverIndividual(pipeline, xmiClassName, true));
+          } else {
+            // All calls for this individual are written in order by one thread of the window
+            final WritePipeline unit = pipeline.fork();
+            individuals.put(xmiClassName, toWeaverIndividual(unit, xmiClassName, true));
+            inFlight.submit(new Runnable() {
+              @Override
+              public void run() {
+                unit.flush();
+              }
+            });
+          }
+        }
+      }
+      if(inFlight != null) {
+        inFlight.await();
+      }
+    } finally {
+      if(inFlight != null) {
+        inFlight.close();
       }
     }
-    now = new Date().getTime();
-    System.out.println(now - then);
+    pipeline.flush();
+    listener.stageFinished("individuals", System.nanoTime() - then);
 
 
-    then = new Date().getTime();
-    createWeaverGeneralizations(ImportXmi.queryXPath(XPATH_TO_XMI_GENERALIZATIONS));
-    now = new Date().getTime();
-    System.out.println(now - then);
+    then = System.nanoTime();
+    if(hierarchy == null) {
+      hierarchy = ClassHierarchy.build(index);
+      hierarchy.validate();
+    }
+    createWeaverGeneralizations(hierarchy.getGeneralizations());
+    pipeline.flush();
+    listener.stageFinished("generalizations", System.nanoTime() - then);
 
     return individuals;
   }
@@ -91,88 +180,165 @@ public class IndividualCreator {
 
 
   /**
-   * Loop trough xmi-associations and map them to weaver as annotations
+   * Loop trough xmi-generalizations and map them to weaver as subclass properties, the generalizations
+   * should be validated (see ClassHierarchy), the ones between classes that are no individuals are skipped
    *
    * @param generalizations
    */
-  public void createWeaverGeneralizations(NodeList generalizations) {
+  public void createWeaverGeneralizations(List<XmiIndex.Generalization> generalizations) {
     
-    for (int i = 0; i < generalizations.getLength(); i++) {
+    for (XmiIndex.Generalization generalization : generalizations) {
 
-      Node generalization = generalizations.item(i);
-      NamedNodeMap attributes = generalization.getAttributes();
+      String key = XmiManifest.key(generalization);
+      if(!delta.isChanged(key)) {
+        continue;
+      }
 
-      Node subType = attributes.getNamedItem("subtype");
-      Node superType = attributes.getNamedItem("supertype");
-      if(subType == null || superType == null) {
+      if(generalization.getSubtype() == null || generalization.getSupertype() == null) {
         continue;
       }
       
-      String subTypeUri = xmiClasses.get(subType.getNodeValue());
-      String superTypeUri = xmiClasses.get(superType.getNodeValue());
-      
-      toWeaverGeneralization(subTypeUri, superTypeUri);
+      String subTypeUri = xmiClasses.get(generalization.getSubtype());
+      String superTypeUri = xmiClasses.get(generalization.getSupertype());
+      if(subTypeUri == null || superTypeUri == null) {
+        continue;
+      }
+
+      // A generalization to another superclass replaces the property written by the previous import
+      String propertyId = toWeaverGeneralization(subTypeUri, superTypeUri, delta.getId(key, XmiManifest.PROPERTY));
+      if(propertyId != null) {
+        delta.written(key, XmiManifest.SUBJECT, subTypeUri);
+        delta.written(key, XmiManifest.PROPERTY, propertyId);
+      }
     }
   }
 
+  /**
+   * Replaces the label of an individual written by a previous import when its class was renamed. The
+   * individual keeps its id, so the properties, predicates and views that refer to it stay valid.
+   */
+  private void relabel(String classKey, String individualId, String name) {
+    String replaced = delta.getId(classKey, XmiManifest.LABEL);
+    if(replaced == null || name == null || replaced.equals(propertyIds.id(EntityType.VALUE_PROPERTY, individualId, "rdfs:label", name))) {
+      return;
+    }
+    EntityRef individual = individual(individualId);
+    EntityRef properties = propertyCollections.get(individualId);
+    if(properties == null) {
+      properties = pipeline.get(individual, "properties");
+      propertyCollections.put(individualId, properties);
+    }
+
+    ConcurrentMap<String, EntityRef> relations = new ConcurrentHashMap<>();
+    relations.put("subject", individual);
+    relations.put("predicate", predicates.get("rdfs:label"));
+
+    ConcurrentHashMap<String, String> propertyAttributes = new ConcurrentHashMap<>();
+    propertyAttributes.put("object", name);
+
+    // Derived from the label it replaces, so renaming a class back does not reuse the id of an earlier label
+    String propertyId = propertyIds.id(EntityType.VALUE_PROPERTY, replaced, "rdfs:label", name);
+    EntityRef label = pipeline.add(propertyAttributes, EntityType.VALUE_PROPERTY, propertyId, relations);
+    pipeline.updateLink(properties, replaced, label);
+    delta.written(classKey, XmiManifest.LABEL, propertyId);
+  }
+
 
 
   /**
-   * Creates two hashMaps from all xmi Classes
-   *
-   * @return
+   * Queues the rdfs:Class individual the other individuals refer to, run() does this when it was not done before
    */
-  public void mapXmiClasses() {
-    xmiClasses = new HashMap<>();
-    xmiValueClasses = new HashMap<>();
-    NodeList classes = ImportXmi.queryXPath(XPATH_TO_XMI_CLASSES);
-    for (int i = 0; i < classes.getLength(); i++) {
-      Node xmiClass = classes.item(i);
+  public void createRdfsClass() {
+    if(individuals.containsKey("rdfs:Class")) {
+      return;
+    }
+    if(delta.exists("rdfs:Class")) {
+      individuals.put("rdfs:Class", pipeline.get("rdfs:Class", EntityType.INDIVIDUAL));
+    } else {
+      individuals.put("rdfs:Class", toWeaverIndividual("rdfs:Class", false));
+      delta.created("rdfs:Class");
+    }
+  }
 
-      String name = deAccent(xmiClass.getAttributes().getNamedItem("name").getNodeValue());
-      String xmiID = xmiClass.getAttributes().getNamedItem("xmi.id").getTextContent();
+  /**
+   * Fills the xmiClasses and xmiValueClasses maps (shared with the ViewCreator) from all xmi Classes
+   */
+  public void mapXmiClasses() {
+    long then = System.nanoTime();
+    xmiClasses.clear();
+    xmiValueClasses.clear();
+    names.clear();
+    for (XmiIndex.XmiClass xmiClass : index.getClasses()) {
+      mapXmiClass(xmiClass);
+    }
 
-      NamedNodeMap xmlAttributes = xmiClass.getAttributes();
 
-      Node isLeaf = xmlAttributes.getNamedItem("isLeaf");
-      if(isLeaf == null) {
-        continue;
-      }
+    // Process stub mentions from xmi
+    for (XmiIndex.XmiClass stub : index.getStubs()) {
+      mapStub(stub);
+    }
+    listener.stageFinished("classes", System.nanoTime() - then);
+  }
 
-      boolean stringAnnotation = "true".equals(isLeaf.getNodeValue());
-      if(stringAnnotation) {
-        String datatype = null;
-        NodeList nodes = ImportXmi.queryXPath(xmiClass, XPATH_TO_XMI_DATATYPE);
-        for(int j = 0; j < nodes.getLength(); j++) {
-          Node node = nodes.item(j);
+  /**
+   * @return the individualId of the class, null for value classes and classes that are not mapped
+   */
+  String mapXmiClass(XmiIndex.XmiClass xmiClass) {
 
-          NamedNodeMap datatypeAttributes = node.getAttributes();
+    if(xmiClass.getIsLeaf() == null || xmiClass.getName() == null) {
+      return null;
+    }
 
-          Node value = datatypeAttributes.getNamedItem("value");
-          if(value != null) {
-            datatype = value.getNodeValue();
-          }
-        }
-        if(datatype == null) {
-//          throw new RuntimeException("Unable to find a datatype in the xmi model!");
-          System.out.println("Unable to find a datatype in the xmi model!");
-          continue;
-        }
-        xmiValueClasses.put(xmiID, datatype);
-      } else {
-        xmiClasses.put(xmiID, name);
+    String name = deAccent(xmiClass.getName());
+    String xmiID = xmiClass.getXmiId();
+    String individualId = delta.individualId(XmiManifest.classKey(xmiID), name);
+
+    boolean stringAnnotation = "true".equals(xmiClass.getIsLeaf());
+    if(stringAnnotation) {
+      String datatype = index.getDatatypes().get(xmiID);
+      if(datatype == null) {
+//        throw new RuntimeException("Unable to find a datatype in the xmi model!");
+        System.out.println("Unable to find a datatype in the xmi model!");
+        return null;
       }
+      xmiValueClasses.put(xmiID, datatype);
+      return null;
     }
+    xmiClasses.put(xmiID, individualId);
+    names.put(xmiID, name);
+    return individualId;
+  }
 
+  /**
+   * @return the individualId of the stub, null when it has no name
+   */
+  String mapStub(XmiIndex.XmiClass stub) {
+    if(stub.getName() == null) {
+      return null;
+    }
+    String name = deAccent(stub.getName());
+    String individualId = delta.individualId(XmiManifest.classKey(stub.getXmiId()), name);
+    xmiClasses.put(stub.getXmiId(), individualId);
+    names.put(stub.getXmiId(), name);
+    return individualId;
+  }
 
-    // Process stub mentions from xmi
-    classes = ImportXmi.queryXPath(XPATH_TO_XMI_STUBS);
-    for (int i = 0; i < classes.getLength(); i++) {
-      Node xmiClass = classes.item(i);
-      String name = deAccent(xmiClass.getAttributes().getNamedItem("name").getNodeValue());
-      String xmiID = xmiClass.getAttributes().getNamedItem("xmi.id").getTextContent();
-      xmiClasses.put(xmiID, name);
+  /**
+   * Queues an individual on a pipeline forked from the one of this creator, unless it is already created
+   *
+   * @return true when the individual was queued
+   */
+  boolean createIndividual(WritePipeline unit, String individualId) {
+    if(individuals.containsKey(individualId) || delta.exists(individualId)) {
+      return false;
     }
+    delta.created(individualId);
+    individuals.put(individualId, toWeaverIndividual(unit, individualId, true));
+    return true;
+  }
+
+  WritePipeline getPipeline() {
+    return pipeline;
   }
 
 
@@ -185,12 +351,25 @@ public class IndividualCreator {
    * @return
    */
   public void toWeaverGeneralization(String subType, String superType) {
+    toWeaverGeneralization(subType, superType, null);
+  }
+
+  /**
+   * @param replaced id of the subclass property this one replaces in the properties of subType, null for none
+   * @return the id of the property, null when the classes are no individuals
+   */
+  private String toWeaverGeneralization(String subType, String superType, String replaced) {
     
-    Entity subEntity = individuals.get(subType);
-    Entity superEntity = individuals.get(superType);
+    EntityRef subEntity = individual(subType);
+    EntityRef superEntity = individual(superType);
     
     if(EntityType.INDIVIDUAL.equals(subEntity.getType()) && EntityType.INDIVIDUAL.equals(superEntity.getType())) {
 
+      String propertyId = propertyIds.id(EntityType.INDIVIDUAL_PROPERTY, subType, "rdfs:subClassOf", superType);
+      if(propertyId.equals(replaced)) {
+        return propertyId;
+      }
+
 //      Entity annotations = weaver.get(subEntity.getRelations().get("annotations").getId());
 //      Entity subClassAnnotation = null;
 //      for(String key : annotations.getRelations().keySet()) {
@@ -199,29 +378,51 @@ public class IndividualCreator {
 //          subClassAnnotation = candidateAnnotation;
 //        }
 //      }
-      Entity properties = weaver.get(subEntity.getRelations().get("properties").getId());
+      EntityRef properties = propertyCollections.get(subType);
+      if(properties == null) {
+        properties = pipeline.get(subEntity, "properties");
+        propertyCollections.put(subType, properties);
+      }
 
 //      if(subClassAnnotation == null || properties == null) {
 //        throw new RuntimeException("Problem finding annotations or properties with generalization of "+subType+" --> "+superType+".");
 //      }
 
-      ConcurrentMap<String, ShallowEntity> relations = new ConcurrentHashMap<>();
-      relations.put("subject", subEntity.toShallowEntity());
-      relations.put("object", superEntity.toShallowEntity());
-      relations.put("predicate", predicates.get("rdfs:subClassOf").toShallowEntity());
+      ConcurrentMap<String, EntityRef> relations = new ConcurrentHashMap<>();
+      relations.put("subject", subEntity);
+      relations.put("object", superEntity);
+      relations.put("predicate", predicates.get("rdfs:subClassOf"));
 //      relations.put("annotation", subClassAnnotation);
 
       ConcurrentHashMap<String, String> propertyAttributes = new ConcurrentHashMap<>();
-      propertyAttributes.put("source", ImportXmi.source);
+      propertyAttributes.put("source", source);
 
-      Entity nameProperty = weaver.add(propertyAttributes, EntityType.INDIVIDUAL_PROPERTY, UUID.randomUUID().toString(), relations);
+      EntityRef nameProperty = pipeline.add(propertyAttributes, EntityType.INDIVIDUAL_PROPERTY, propertyId, relations);
 
 
-      properties.linkEntity(nameProperty.getId(), nameProperty.toShallowEntity());
+      if(replaced == null) {
+        pipeline.link(properties, nameProperty);
+      } else {
+        pipeline.updateLink(properties, replaced, nameProperty);
+      }
+      return propertyId;
 
     } else {
       //throw new RuntimeException("Skipping creation of generalization of "+subType+" --> "+superType+".");
     }
+    return null;
+  }
+
+  /**
+   * The individual created by this import, or a reference to the one written by a previous import
+   */
+  private EntityRef individual(String individualId) {
+    EntityRef individual = individualId != null ? individuals.get(individualId) : null;
+    if(individual == null && individualId != null && delta.exists(individualId)) {
+      individual = pipeline.get(individualId, EntityType.INDIVIDUAL);
+      individuals.put(individualId, individual);
+    }
+    return individual;
   }
 
   /**
@@ -230,18 +431,20 @@ public class IndividualCreator {
    * @param individualId
    * @return
    */
-  public Entity toWeaverIndividual(String individualId, boolean isRdfsClass) {
+  public EntityRef toWeaverIndividual(String individualId, boolean isRdfsClass) {
+    return toWeaverIndividual(pipeline, individualId, isRdfsClass);
+  }
+
+  private EntityRef toWeaverIndividual(WritePipeline pipeline, String individualId, boolean isRdfsClass) {
 
     ConcurrentHashMap<String, String> defaultAttributes = new ConcurrentHashMap<>();
     defaultAttributes.put("name", individualId);
-    defaultAttributes.put("source", ImportXmi.source);
+    defaultAttributes.put("source", source);
 
     // Create object
-    Entity individual = weaver.add(defaultAttributes, EntityType.INDIVIDUAL, individualId);
+    EntityRef individual = pipeline.add(defaultAttributes, EntityType.INDIVIDUAL, individualId);
 
-    String objectsId = dataset.getRelations().get("objects").getId();
-    Entity objects = weaver.get(objectsId);
-    objects.linkEntity(individual.getId(), individual.toShallowEntity());
+    pipeline.link(objects, individual);
 
     // Create first annotation collection
 //      Entity annotations = weaver.collection();
@@ -260,10 +463,11 @@ public class IndividualCreator {
 //      toWeaverAnnotation(subClassAnnotationAttributes, individualId);
 
     // Create collection properties
-    Entity properties = weaver.collection();
-    individual.linkEntity("properties", properties.toShallowEntity());
+    EntityRef properties = pipeline.collection();
+    pipeline.link(individual, "properties", properties);
+    propertyCollections.put(individualId, properties);
 
-    ConcurrentMap<String, ShallowEntity> relations;
+    ConcurrentMap<String, EntityRef> relations;
     ConcurrentHashMap<String, String> propertyAttributes;
 
 
@@ -272,35 +476,35 @@ public class IndividualCreator {
 
     // Set rdf:type to Class property
     if(isRdfsClass) {
-      relations.put("subject", individual.toShallowEntity());
-      relations.put("object", individuals.get("rdfs:Class").toShallowEntity());
-      relations.put("predicate", predicates.get("rdfs:label").toShallowEntity());
+      relations.put("subject", individual);
+      relations.put("object", individuals.get("rdfs:Class"));
+      relations.put("predicate", predicates.get("rdfs:label"));
 //      relations.put("annotation", nameAnnotation);
 
       propertyAttributes = new ConcurrentHashMap<>();
 
-      Entity typeProperty = weaver.add(propertyAttributes, EntityType.INDIVIDUAL_PROPERTY, UUID.randomUUID().toString(), relations);
-      properties.linkEntity(typeProperty.getId(), typeProperty.toShallowEntity());
+      String propertyId = propertyIds.id(EntityType.INDIVIDUAL_PROPERTY, individualId, "rdfs:label", "rdfs:Class");
+      EntityRef typeProperty = pipeline.add(propertyAttributes, EntityType.INDIVIDUAL_PROPERTY, propertyId, relations);
+      pipeline.link(properties, typeProperty);
     }
 
     // Set label property
     relations = new ConcurrentHashMap<>();
-    relations.put("subject", individual.toShallowEntity());
-    relations.put("predicate", predicates.get("rdfs:label").toShallowEntity());
+    relations.put("subject", individual);
+    relations.put("predicate", predicates.get("rdfs:label"));
 //      relations.put("annotation", nameAnnotation);
 
     propertyAttributes = new ConcurrentHashMap<>();
     propertyAttributes.put("object", individualId);
 
-    Entity nameProperty = weaver.add(propertyAttributes, EntityType.VALUE_PROPERTY, UUID.randomUUID().toString(), relations);
-    properties.linkEntity(nameProperty.getId(), nameProperty.toShallowEntity());
+    String propertyId = propertyIds.id(EntityType.VALUE_PROPERTY, individualId, "rdfs:label", individualId);
+    EntityRef nameProperty = pipeline.add(propertyAttributes, EntityType.VALUE_PROPERTY, propertyId, relations);
+    pipeline.link(properties, nameProperty);
 
     return individual;
   }
 
   public static String deAccent(String str) {
-    String nfdNormalizedString = Normalizer.normalize(str, Normalizer.Form.NFD);
-    Pattern pattern = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
-    return pattern.matcher(nfdNormalizedString).replaceAll("");
+    return NameProcessor.DEFAULT.deAccent(str);
   }
 }
\ No newline at end of file
@@ -0,0 +1,156 @@
+package com.weaverplatform.importer.xmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Local record of the Weaver writes of an import that have completed, with the id of the written entity.
+ *
+ * Operations are keyed by pipeline name and their position in that pipeline, which is the same on every run
+ * of the same model. A resumed import skips the operations that are in the journal and continues with the
+ * ids recorded for them. The first line holds the fingerprint of the model, a journal is only resumed for
+ * the model it was written for. A last line without newline was cut off by a crash, it is dropped on resume.
+ */
+public class Journal {
+
+  private final ConcurrentHashMap<String, String> completed = new ConcurrentHashMap<>();   // operation key -> entity id
+  private final File file;
+  private final FileOutputStream out;
+  private final BufferedWriter writer;
+  private int skipped;
+
+  private Journal(File file, FileOutputStream out) {
+    this.file = file;
+    this.out = out;
+    this.writer = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8));
+  }
+
+  /**
+   * @param resume keep the operations of a previous run, otherwise the journal is started empty
+   * @param fingerprint of the model, see XmiManifest.getModelFingerprint()
+   * @throws RuntimeException when resuming a journal of another model, or of another version of the model
+   */
+  public static Journal open(File file, boolean resume, String fingerprint) {
+    String header = "fingerprint\t"+fingerprint;
+    try {
+      Journal journal;
+      if(resume && file.exists()) {
+        ConcurrentHashMap<String, String> completed = new ConcurrentHashMap<>();
+        long length = 0;   // up to the last newline
+        try (InputStream in = new BufferedInputStream(new FileInputStream(file))) {
+          ByteArrayOutputStream line = new ByteArrayOutputStream();
+          long position = 0;
+          for(int b; (b = in.read()) != -1; ) {
+            position++;
+            if(b != '\n') {
+              line.write(b);
+              continue;
+            }
+            String text = new String(line.toByteArray(), StandardCharsets.UTF_8);
+            line.reset();
+            if(length == 0) {
+              if(!header.equals(text)) {
+                break;
+              }
+            } else {
+              int tab = text.indexOf('\t');
+              if(tab > 0) {
+                completed.put(text.substring(0, tab), text.substring(tab + 1));
+              }
+            }
+            length = position;
+          }
+        }
+        if(length == 0) {
+          throw new RuntimeException("Journal "+file+" was written for another version of the model, import without resume to start over");
+        }
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.getChannel().truncate(length);
+        journal = new Journal(file, out);
+        journal.completed.putAll(completed);
+      } else {
+        journal = new Journal(file, new FileOutputStream(file));
+        journal.writer.write(header);
+        journal.writer.write('\n');
+        journal.flush();
+      }
+      return journal;
+    } catch (IOException e) {
+      throw new RuntimeException("Problem opening journal "+file, e);
+    }
+  }
+
+  public boolean isCompleted(String key) {
+    return completed.containsKey(key);
+  }
+
+  /**
+   * @return the id of the entity written by the operation, empty for links
+   */
+  public String getId(String key) {
+    return completed.get(key);
+  }
+
+  synchronized void skipped() {
+    skipped++;
+  }
+
+  public synchronized int getSkipped() {
+    return skipped;
+  }
+
+  public synchronized void record(String key, String id) {
+    String value = id == null ? "" : id;
+    completed.put(key, value);
+    try {
+      writer.write(key);
+      writer.write('\t');
+      writer.write(value);
+      writer.write('\n');
+    } catch (IOException e) {
+      throw new RuntimeException("Problem writing journal", e);
+    }
+  }
+
+  /**
+   * Makes the recorded operations durable, they are forced to the disk. Called by the pipeline after every wave.
+   */
+  public synchronized void flush() {
+    try {
+      writer.flush();
+      out.getChannel().force(false);
+    } catch (IOException e) {
+      throw new RuntimeException("Problem writing journal", e);
+    }
+  }
+
+  public synchronized void close() {
+    try {
+      writer.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Problem closing journal", e);
+    }
+  }
+
+  /**
+   * Closes and removes the journal, after the import completed there is nothing to resume
+   */
+  public synchronized void delete() {
+    close();
+    try {
+      Files.deleteIfExists(file.toPath());
+    } catch (IOException e) {
+      throw new RuntimeException("Problem removing journal "+file, e);
+    }
+  }
+}
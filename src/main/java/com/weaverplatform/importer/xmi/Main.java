@@ -1,6 +1,16 @@
 package com.weaverplatform.importer.xmi;
 
+import com.weaverplatform.sdk.Weaver;
+
+import java.io.BufferedInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 public class Main {
 
@@ -9,18 +19,147 @@ public class Main {
    * @param args
    * args[0] = weaver connection uri i.e. http://weaver:port
    * args[1] = filePath (see also: constructor @param filePath)
-   * args[2] = name of model of weaver workbench                 
+   * args[2] = name of model of weaver workbench
+   * [--journal[=path]] record the completed writes in a journal (default filePath.journal), removed when the
+   *   import succeeds
+   * [--resume] continue a failed import from its journal
+   * [--report=path] write the metrics of the import to this file as JSON
+   * [--connections=N] spread the writes over N connections to Weaver (default 1)
+   * [--pipelined] write the individuals while the file is read, see ImportXmi.runPipelined
+   *
+   * or: plan filePath datasetId logPath
+   *   writes the import to an operation log instead of Weaver
+   *
+   * or: replay weaverUri logPath [datasetId]
+   *   writes an operation log to Weaver, optionally into another dataset than it was planned for
+   *
+   * or: batch weaverUri directoryOrList [parallelism] [--journal] [--resume] [--report=directory] [--connections=N]
+   *   imports every xmi file of a directory into the dataset named after it, or the "filePath datasetId"
+   *   lines of a list, in parallel over one (or N) Weaver connections
+   *
+   * or: serve weaverUri [port] [workers] [--connections=N]
+   *   runs imports posted over http on localhost until the process is stopped, see ImportServer
+   *
+   * or: generate filePath classes [valueClasses stubs associations depth fanOut]
+   *   writes a synthetic xmi model, see XmiGenerator
    */
   public static void main(String[] args) throws IOException {
+
+    if("plan".equals(args[0])) {
+      ImportXmi importXmi = new ImportXmi((Weaver) null, args[2]);
+      importXmi.setOperationLog(new File(args[3]));
+      importXmi.readFromFile(args[1]);
+      importXmi.run();
+      return;
+    }
+
+    if("replay".equals(args[0])) {
+      ImportXmi importXmi = new ImportXmi(args[1], args.length > 3 ? args[3] : null);
+      long operations = importXmi.replay(new File(args[2]));
+      importXmi.close();
+      System.out.println("Replayed "+operations+" operations");
+      return;
+    }
+
+    if("batch".equals(args[0])) {
+      List<String> options = Arrays.asList(args);
+      int parallelism = args.length > 3 && !args[3].startsWith("--") ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+      ImportXmi connection = new ImportXmi(args[1], null, connections(options));
+      try {
+        BatchImport batch = new BatchImport(connection.getSink(), parallelism);
+        batch.setJournal(options.contains("--journal"));
+        batch.setResume(options.contains("--resume"));
+        if(option(options, "--report=") != null) {
+          batch.setReports(new File(option(options, "--report=")));
+        }
+        batch.addAll(new File(args[2]));
+        Map<File, Throwable> failures = batch.run();
+        if(!failures.isEmpty()) {
+          throw new RuntimeException("Import of "+failures.size()+" of "+batch.getFiles().size()+" files failed: "+failures.keySet());
+        }
+      } finally {
+        connection.close();
+      }
+      return;
+    }
+
+    if("serve".equals(args[0])) {
+      List<String> options = Arrays.asList(args);
+      int port = args.length > 2 && !args[2].startsWith("--") ? Integer.parseInt(args[2]) : ImportServer.DEFAULT_PORT;
+      int workers = args.length > 3 && !args[3].startsWith("--") ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+
+      final ImportXmi connection = new ImportXmi(args[1], null, connections(options));
+      final ImportServer server = new ImportServer(connection.getSink(), workers, ImportServer.DEFAULT_QUEUE_SIZE);
+      Runtime.getRuntime().addShutdownHook(new Thread(new Runnable() {
+        @Override
+        public void run() {
+          server.stop();
+          connection.close();
+        }
+      }));
+      server.start(port);
+      return;
+    }
+
+    if("generate".equals(args[0])) {
+      int classes = Integer.parseInt(args[2]);
+      XmiGenerator generator = new XmiGenerator();
+      generator.setClasses(classes);
+      generator.setValueClasses(args.length > 3 ? Integer.parseInt(args[3]) : classes / 10);
+      generator.setStubs(args.length > 4 ? Integer.parseInt(args[4]) : classes / 100);
+      generator.setAssociations(args.length > 5 ? Integer.parseInt(args[5]) : classes);
+      generator.setGeneralizations(args.length > 6 ? Integer.parseInt(args[6]) : 4, args.length > 7 ? Integer.parseInt(args[7]) : 5);
+      generator.write(new File(args[1]));
+      System.out.println("Wrote "+generator.getElementCount()+" elements to "+args[1]);
+      return;
+    }
+
     String weaverUrl, filePath, datasetId;
     
     weaverUrl = args[0];
     filePath  = args[1];
     datasetId = args[2];
     
-    ImportXmi importXmi = new ImportXmi(weaverUrl, datasetId);
-    importXmi.readFromFile(filePath);
-    importXmi.run();
+    List<String> options = Arrays.asList(args).subList(3, args.length);
+    boolean resume = options.contains("--resume");
+
+    ImportXmi importXmi = new ImportXmi(weaverUrl, datasetId, connections(options));
+    String journal = option(options, "--journal=");
+    if(journal == null && (resume || options.contains("--journal"))) {
+      journal = filePath+".journal";
+    }
+    if(journal != null) {
+      importXmi.setJournal(new File(journal), resume);
+    }
+    if(option(options, "--report=") != null) {
+      importXmi.setReport(new File(option(options, "--report=")));
+    }
+    if(options.contains("--pipelined")) {
+      try (InputStream stream = new BufferedInputStream(Files.newInputStream(Paths.get(filePath)), 64 * 1024)) {
+        importXmi.runPipelined(stream);
+      }
+    } else {
+      importXmi.readFromFile(filePath);
+      importXmi.run();
+    }
     importXmi.close();
   }
-}
\ No newline at end of file
+
+  private static int connections(List<String> options) {
+    String connections = option(options, "--connections=");
+    return connections != null ? Integer.parseInt(connections) : 1;
+  }
+
+  /**
+   * @return the value of the option that starts with prefix, null if it is not given
+   */
+  private static String option(List<String> options, String prefix) {
+    for(String option : options) {
+      if(option.startsWith(prefix)) {
+        return option.substring(prefix.length());
+      }
+    }
+    return null;
+  }
+}
@@ -0,0 +1,131 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the imported graph in memory, for tests and for measuring the importer without a Weaver server.
+ */
+public class MemorySink implements ImportSink {
+
+  public static final String COLLECTION = "$COLLECTION";
+  public static final String DATASET = "$DATASET";
+
+  private final ConcurrentHashMap<String, Node> nodes = new ConcurrentHashMap<>();   // id -> node
+  private final AtomicLong ids = new AtomicLong();
+
+  @Override
+  public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+    Node node = new Node(id != null ? id : generateId(), type);
+    node.attributes.putAll(attributes);
+    if(relations != null) {
+      for(Map.Entry<String, String> relation : relations.entrySet()) {
+        node.relations.put(relation.getKey(), node(relation.getValue()).id);
+      }
+    }
+    nodes.put(node.id, node);
+    return node.id;
+  }
+
+  @Override
+  public String collection() {
+    Node node = new Node(generateId(), COLLECTION);
+    nodes.put(node.id, node);
+    return node.id;
+  }
+
+  @Override
+  public String get(String id) {
+    return node(id).type;
+  }
+
+  @Override
+  public synchronized String dataset(String datasetId) {
+    if(!nodes.containsKey(datasetId)) {
+      Node dataset = new Node(datasetId, DATASET);
+      dataset.relations.put("objects", collection());
+      dataset.relations.put("predicates", collection());
+      dataset.relations.put("models", collection());
+      nodes.put(datasetId, dataset);
+    }
+    return datasetId;
+  }
+
+  @Override
+  public String relation(String id, String key) {
+    return node(id).relations.get(key);
+  }
+
+  @Override
+  public void link(String parentId, String key, String childId) {
+    node(parentId).relations.put(key, node(childId).id);
+  }
+
+  @Override
+  public void updateLink(String parentId, String key, String childId) {
+    link(parentId, key, childId);
+  }
+
+  @Override
+  public void close() {
+  }
+
+  /**
+   * @return the node with this id, null if it does not exist
+   */
+  public Node getNode(String id) {
+    return nodes.get(id);
+  }
+
+  public Map<String, Node> getNodes() {
+    return nodes;
+  }
+
+  public int size() {
+    return nodes.size();
+  }
+
+  private Node node(String id) {
+    Node node = nodes.get(id);
+    if(node == null) {
+      throw new RuntimeException("Entity "+id+" not found.");
+    }
+    return node;
+  }
+
+  private String generateId() {
+    return "mem-"+ids.incrementAndGet();
+  }
+
+
+
+  public static class Node {
+
+    private final String id;
+    private final String type;
+    private final ConcurrentHashMap<String, String> attributes = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> relations = new ConcurrentHashMap<>();   // key -> id
+
+    Node(String id, String type) {
+      this.id = id;
+      this.type = type;
+    }
+
+    public String getId() {
+      return id;
+    }
+
+    public String getType() {
+      return type;
+    }
+
+    public Map<String, String> getAttributes() {
+      return attributes;
+    }
+
+    public Map<String, String> getRelations() {
+      return relations;
+    }
+  }
+}
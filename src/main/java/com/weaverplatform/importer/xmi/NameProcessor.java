@@ -0,0 +1,123 @@
+package com.weaverplatform.importer.xmi;
+
+import java.text.Normalizer;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Derives the names and ids the importer writes from the names in the xmi.
+ *
+ * Names are handled in a single pass over their characters. Most names are plain ASCII and are returned
+ * as they are by deAccent, the others are normalized once and remembered, as the same class names recur in
+ * many associations.
+ */
+public class NameProcessor {
+
+  public static final NameProcessor DEFAULT = new NameProcessor();
+
+  private static final int MAX_MEMO_SIZE = 100000;
+
+  private final ConcurrentHashMap<String, String> deAccented = new ConcurrentHashMap<>();   // name -> name without accents
+
+  /**
+   * @return the name without diacritical marks (e.g. Sluís -> Sluis)
+   */
+  public String deAccent(String name) {
+    if(isAscii(name)) {
+      return name;
+    }
+    String result = deAccented.get(name);
+    if(result == null) {
+      result = stripCombiningMarks(Normalizer.normalize(name, Normalizer.Form.NFD));
+      if(deAccented.size() < MAX_MEMO_SIZE) {
+        deAccented.put(name, result);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return lib:domain-predicate-range with the prefixes of the parts removed
+   */
+  public String domainPredicateRangeToId(String domain, String predicate, String range) {
+    StringBuilder result = new StringBuilder(4 + domain.length() + predicate.length() + range.length());
+    result.append("lib:");
+    appendWithoutColons(result, domain);
+    result.append('-');
+    appendWithoutColons(result, predicate);
+    result.append('-');
+    appendWithoutColons(result, range);
+    return result.toString();
+  }
+
+  /**
+   * @return the camel case local name of the predicate as lower case words (lib:hasPart -> has part)
+   */
+  public String predicateNameFromId(String predicateId) {
+    int start = predicateId.indexOf(':') + 1;
+    if(start == 0) {
+      throw new IllegalArgumentException("Predicate "+predicateId+" has no prefix.");
+    }
+    int end = predicateId.indexOf(':', start);
+    if(end < 0) {
+      end = predicateId.length();
+    }
+
+    StringBuilder result = new StringBuilder(end - start + 8);
+    for(int i = start; i < end; i++) {
+      char c = predicateId.charAt(i);
+      if(c >= 'A' && c <= 'Z') {
+        if(result.length() > 0) {
+          result.append(' ');
+        }
+        result.append((char) (c + ('a' - 'A')));
+      } else if(c > 0x7f && Character.isUpperCase(c)) {
+        if(result.length() > 0) {
+          result.append(' ');
+        }
+        result.append(String.valueOf(c).toLowerCase());
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  /**
+   * @return the predicate name spelled backwards
+   */
+  public String predicateReversedNameFromId(String predicateId) {
+    return new StringBuilder(predicateNameFromId(predicateId)).reverse().toString();
+  }
+
+  private static boolean isAscii(String name) {
+    for(int i = 0; i < name.length(); i++) {
+      if(name.charAt(i) > 0x7f) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Removes the characters of the Combining Diacritical Marks block (U+0300 - U+036F)
+   */
+  private static String stripCombiningMarks(String normalized) {
+    StringBuilder result = new StringBuilder(normalized.length());
+    for(int i = 0; i < normalized.length(); i++) {
+      char c = normalized.charAt(i);
+      if(c < 0x0300 || c > 0x036f) {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+  private static void appendWithoutColons(StringBuilder builder, String value) {
+    for(int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if(c != ':') {
+        builder.append(c);
+      }
+    }
+  }
+}
@@ -0,0 +1,214 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * One queued call to an ImportSink, created by the WritePipeline.
+ */
+public class Operation {
+
+  public enum Kind {
+    ADD,            // sink.add, result is the new entity
+    COLLECTION,     // sink.collection, result is the new collection
+    GET,            // sink.get, result is the existing entity
+    DATASET,        // sink.dataset, result is the dataset entity
+    RELATION,       // sink.relation, result is the entity a relation of parent points to
+    LINK,           // sink.link
+    UPDATE_LINK     // sink.updateLink
+  }
+
+  private final Kind kind;
+  private final EntityRef result;
+
+  private String type;
+  private String id;
+  private ConcurrentHashMap<String, String> attributes;
+  private Map<String, EntityRef> relations;
+
+  private EntityRef parent;
+  private String key;
+  private EntityRef child;
+
+  int wave;
+  String journalKey;
+
+  private Operation(Kind kind, EntityRef result) {
+    this.kind = kind;
+    this.result = result;
+    if(result != null) {
+      result.setSource(this);
+    }
+  }
+
+  static Operation add(ConcurrentHashMap<String, String> attributes, String type, String id, Map<String, EntityRef> relations) {
+    if(id == null && relations != null) {
+      throw new IllegalArgumentException("Entities with relations need an id.");
+    }
+    Operation operation = new Operation(Kind.ADD, new EntityRef(type, id));
+    operation.attributes = attributes;
+    operation.type = type;
+    operation.id = id;
+    operation.relations = relations;
+    return operation;
+  }
+
+  static Operation collection() {
+    return new Operation(Kind.COLLECTION, new EntityRef(null, null));
+  }
+
+  static Operation get(String id, String type) {
+    Operation operation = new Operation(Kind.GET, new EntityRef(type, id));
+    operation.id = id;
+    return operation;
+  }
+
+  static Operation dataset(String id) {
+    Operation operation = new Operation(Kind.DATASET, new EntityRef(null, id));
+    operation.id = id;
+    return operation;
+  }
+
+  static Operation relation(EntityRef parent, String key) {
+    Operation operation = new Operation(Kind.RELATION, new EntityRef(null, null));
+    operation.parent = parent;
+    operation.key = key;
+    return operation;
+  }
+
+  static Operation link(Kind kind, EntityRef parent, String key, EntityRef child) {
+    Operation operation = new Operation(kind, null);
+    operation.parent = parent;
+    operation.key = key;
+    operation.child = child;
+    return operation;
+  }
+
+  /**
+   * @return the handles this operation needs to be resolved before it can be executed
+   */
+  public List<EntityRef> getDependencies() {
+    List<EntityRef> dependencies = new ArrayList<>();
+    if(relations != null) {
+      dependencies.addAll(relations.values());
+    }
+    if(parent != null) {
+      dependencies.add(parent);
+    }
+    if(child != null) {
+      dependencies.add(child);
+    }
+    return dependencies;
+  }
+
+  void execute(ImportSink sink) {
+    String resultId = null;
+    String resultType = null;
+    switch (kind) {
+      case ADD:
+        Map<String, String> relationIds = null;
+        if(relations != null) {
+          relationIds = new HashMap<>();
+          for(Map.Entry<String, EntityRef> relation : relations.entrySet()) {
+            relationIds.put(relation.getKey(), id(relation.getValue()));
+          }
+        }
+        resultId = sink.add(attributes, type, id, relationIds);
+        break;
+
+      case COLLECTION:
+        resultId = sink.collection();
+        break;
+
+      case GET:
+        resultType = sink.get(id);
+        resultId = id;
+        break;
+
+      case DATASET:
+        resultId = sink.dataset(id);
+        break;
+
+      case RELATION:
+        resultId = sink.relation(id(parent), key);
+        if(resultId == null) {
+          throw new RuntimeException("Relation "+key+" not found for "+parent.getId());
+        }
+        break;
+
+      case LINK:
+        sink.link(id(parent), key != null ? key : id(child), id(child));
+        break;
+
+      case UPDATE_LINK:
+        sink.updateLink(id(parent), key, id(child));
+        break;
+    }
+
+    if(result != null) {
+      result.resolve(resultId, resultType);
+    }
+  }
+
+  /**
+   * @return true for the operations that write to Weaver, these are recorded in a Journal
+   */
+  public boolean isWrite() {
+    return kind == Kind.ADD || kind == Kind.COLLECTION || kind == Kind.LINK || kind == Kind.UPDATE_LINK;
+  }
+
+  /**
+   * Completes the operation with the outcome of an earlier run instead of executing it
+   */
+  void skip(String resultId) {
+    if(result != null) {
+      result.resolve(resultId, null);
+    }
+  }
+
+  private static String id(EntityRef ref) {
+    if(!ref.isResolved()) {
+      throw new IllegalStateException("Entity "+ref.getId()+" is used before it was written.");
+    }
+    return ref.getId();
+  }
+
+  public Kind getKind() {
+    return kind;
+  }
+
+  public EntityRef getResult() {
+    return result;
+  }
+
+  public String getType() {
+    return type;
+  }
+
+  public String getId() {
+    return id;
+  }
+
+  public ConcurrentHashMap<String, String> getAttributes() {
+    return attributes;
+  }
+
+  public Map<String, EntityRef> getRelations() {
+    return relations;
+  }
+
+  public EntityRef getParent() {
+    return parent;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public EntityRef getChild() {
+    return child;
+  }
+}
@@ -0,0 +1,243 @@
+package com.weaverplatform.importer.xmi;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Append-only file with the operations of an import, written instead of calling Weaver.
+ *
+ * Every operation that produces an entity is numbered in order of appearance, later operations refer to
+ * entities by that number. replay() streams the log into a WritePipeline, so a plan can be made once without
+ * a Weaver connection and written to one or more Weaver instances later.
+ */
+public class OperationLog {
+
+  private static final int MAGIC = 0x584d494f;   // "XMIO"
+  private static final int VERSION = 2;
+
+  private final DataOutputStream out;
+  private long sequence = 0;
+
+  private OperationLog(DataOutputStream out) {
+    this.out = out;
+  }
+
+  public static OperationLog create(File file) {
+    try {
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 64 * 1024));
+      out.writeInt(MAGIC);
+      out.writeInt(VERSION);
+      return new OperationLog(out);
+    } catch (IOException e) {
+      throw new RuntimeException("Problem creating operation log "+file, e);
+    }
+  }
+
+  /**
+   * Appends the operation, the entity it produces is numbered for later references
+   */
+  public synchronized void append(Operation operation) {
+    try {
+      out.writeByte(operation.getKind().ordinal());
+      switch (operation.getKind()) {
+        case ADD:
+          writeString(operation.getType());
+          writeString(operation.getId());
+          out.writeInt(operation.getAttributes().size());
+          for(Map.Entry<String, String> attribute : operation.getAttributes().entrySet()) {
+            writeText(attribute.getKey());
+            writeText(attribute.getValue());
+          }
+          Map<String, EntityRef> relations = operation.getRelations();
+          out.writeInt(relations == null ? -1 : relations.size());
+          if(relations != null) {
+            for(Map.Entry<String, EntityRef> relation : relations.entrySet()) {
+              writeText(relation.getKey());
+              writeRef(relation.getValue());
+            }
+          }
+          break;
+
+        case COLLECTION:
+          break;
+
+        case GET:
+          writeString(operation.getId());
+          writeString(operation.getResult().getType());
+          break;
+
+        case DATASET:
+          writeString(operation.getId());
+          break;
+
+        case RELATION:
+          writeRef(operation.getParent());
+          writeString(operation.getKey());
+          break;
+
+        case LINK:
+        case UPDATE_LINK:
+          writeRef(operation.getParent());
+          writeString(operation.getKey());
+          writeRef(operation.getChild());
+          break;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Problem writing operation log", e);
+    }
+
+    if(operation.getResult() != null) {
+      operation.getResult().logged(sequence++);
+    }
+  }
+
+  public synchronized void close() {
+    try {
+      out.close();
+    } catch (IOException e) {
+      throw new RuntimeException("Problem closing operation log", e);
+    }
+  }
+
+  private void writeRef(EntityRef ref) throws IOException {
+    if(ref.getSequence() < 0) {
+      throw new IllegalStateException("Entity "+ref.getId()+" is not in the operation log.");
+    }
+    out.writeLong(ref.getSequence());
+  }
+
+  private void writeString(String value) throws IOException {
+    out.writeBoolean(value != null);
+    if(value != null) {
+      writeText(value);
+    }
+  }
+
+  /**
+   * Length prefixed UTF-8, unlike writeUTF this has no limit of 64k bytes (e.g. for long notes)
+   */
+  private void writeText(String value) throws IOException {
+    byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+
+
+  /**
+   * Writes all operations of the log to the pipeline and flushes it
+   *
+   * @param datasetId replaces the dataset of the plan, null to keep it
+   * @return the number of replayed operations
+   */
+  public static long replay(File file, WritePipeline pipeline, String datasetId) {
+    long count = 0;
+    List<EntityRef> refs = new ArrayList<>();
+
+    try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 64 * 1024))) {
+      if(in.readInt() != MAGIC || in.readInt() != VERSION) {
+        throw new RuntimeException("File "+file+" is not an operation log of this version.");
+      }
+
+      while(true) {
+        int kind;
+        try {
+          kind = in.readByte();
+        } catch (EOFException e) {
+          break;
+        }
+
+        switch (Operation.Kind.values()[kind]) {
+          case ADD:
+            String type = readString(in);
+            String id = readString(in);
+            ConcurrentHashMap<String, String> attributes = new ConcurrentHashMap<>();
+            int attributeCount = in.readInt();
+            for(int i = 0; i < attributeCount; i++) {
+              attributes.put(readText(in), readText(in));
+            }
+            int relationCount = in.readInt();
+            ConcurrentHashMap<String, EntityRef> relations = relationCount < 0 ? null : new ConcurrentHashMap<String, EntityRef>();
+            for(int i = 0; i < relationCount; i++) {
+              relations.put(readText(in), readRef(in, refs));
+            }
+            if(id == null) {
+              refs.add(pipeline.add(attributes, type));
+            } else if(relations == null) {
+              refs.add(pipeline.add(attributes, type, id));
+            } else {
+              refs.add(pipeline.add(attributes, type, id, relations));
+            }
+            break;
+
+          case COLLECTION:
+            refs.add(pipeline.collection());
+            break;
+
+          case GET:
+            String getId = readString(in);
+            refs.add(pipeline.get(getId, readString(in)));
+            break;
+
+          case DATASET:
+            String plannedDataset = readString(in);
+            refs.add(pipeline.dataset(datasetId != null ? datasetId : plannedDataset));
+            break;
+
+          case RELATION:
+            EntityRef parent = readRef(in, refs);
+            refs.add(pipeline.get(parent, readString(in)));
+            break;
+
+          case LINK:
+            EntityRef linkParent = readRef(in, refs);
+            String linkKey = readString(in);
+            pipeline.link(linkParent, linkKey, readRef(in, refs));
+            break;
+
+          case UPDATE_LINK:
+            EntityRef updateParent = readRef(in, refs);
+            String updateKey = readString(in);
+            pipeline.updateLink(updateParent, updateKey, readRef(in, refs));
+            break;
+        }
+        count++;
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Problem reading operation log "+file, e);
+    }
+
+    pipeline.flush();
+    return count;
+  }
+
+  private static EntityRef readRef(DataInputStream in, List<EntityRef> refs) throws IOException {
+    long sequence = in.readLong();
+    if(sequence >= refs.size()) {
+      throw new RuntimeException("Operation log refers to entity "+sequence+" before it is created.");
+    }
+    return refs.get((int) sequence);
+  }
+
+  private static String readString(DataInputStream in) throws IOException {
+    return in.readBoolean() ? readText(in) : null;
+  }
+
+  private static String readText(DataInputStream in) throws IOException {
+    byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+}
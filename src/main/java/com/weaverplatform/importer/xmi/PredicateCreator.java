@@ -1,11 +1,10 @@
 package com.weaverplatform.importer.xmi;
 
-import com.weaverplatform.sdk.*;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import com.weaverplatform.sdk.EntityType;
 
-import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
 /**
@@ -18,163 +17,233 @@ public class PredicateCreator {
   public static final String XPATH_TO_XMI_ASSOCIATIONS_SOURCE = "UML:ModelElement.taggedValue//UML:TaggedValue[@tag='ea_sourceName']/@value";
   public static final String XPATH_TO_XMI_ASSOCIATIONS_TARGET = "UML:ModelElement.taggedValue//UML:TaggedValue[@tag='ea_targetName']/@value";
 
-  private Weaver weaver;
-  private Entity dataset;
+  private static final int MAX_REPORTED = 10;
 
-  private HashMap<String, Entity> predicates = new HashMap<>();
-  private HashMap<String, Entity> subPropertyCollections = new HashMap<>();
+  private WritePipeline pipeline;
+  private EntityRef predicatesCollection;
+  private XmiIndex index;
+  private XmiDelta delta = XmiDelta.full();
+  private ImportListener listener = ImportListener.NONE;
+  private String source = ImportXmi.DEFAULT_SOURCE;
+  private NameProcessor names = NameProcessor.DEFAULT;
+
+  private HashMap<String, EntityRef> predicates = new HashMap<>();
+  private HashMap<String, EntityRef> subPropertyCollections = new HashMap<>();
   private HashMap<String, String> domains = new HashMap<>();
   private HashMap<String, String> ranges = new HashMap<>();
 
-  public PredicateCreator(Weaver weaver, Entity dataset) {
-    this.weaver = weaver;
-    this.dataset = dataset;
+  public PredicateCreator(WritePipeline pipeline, XmiIndex index, EntityRef predicatesCollection) {
+    this.pipeline = pipeline;
+    this.index = index;
+    this.predicatesCollection = predicatesCollection;
+  }
+
+
+  /**
+   * Only write the associations that changed since the previous import
+   *
+   * @param delta
+   */
+  public void setDelta(XmiDelta delta) {
+    this.delta = delta;
   }
 
+  public void setListener(ImportListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * The value of the source attribute of the entities this creator writes
+   *
+   * @param source
+   */
+  public void setSource(String source) {
+    this.source = source;
+  }
 
-  public HashMap<String, Entity> run() {
+  public HashMap<String, EntityRef> run() {
 
-    long then, now;
-    then = new Date().getTime();
+    long then = System.nanoTime();
 
     // Predicates
-    predicates.put("rdf:type", toWeaverPredicate("rdf:type"));
-    predicates.put("rdfs:subClassOf", toWeaverPredicate("rdfs:subClassOf"));
-    predicates.put("rdfs:label", toWeaverPredicate("rdfs:label"));
+    createBuiltins();
 
-    NodeList nodes = ImportXmi.queryXPath(PredicateCreator.XPATH_TO_XMI_ASSOCIATION_NAMES);
-    for(int i = 0; i < nodes.getLength(); i++) {
-      Node association = nodes.item(i);
-      String predicateName = association.getNodeValue();
+    for(XmiIndex.Association association : index.getAssociations()) {
+      String predicateName = association.getName();
+
+      if(!delta.isChanged(XmiManifest.key(association))) {
+        continue;
+      }
+
+      if(!predicates.containsKey(predicateName) && delta.exists(predicateName)) {
+        EntityRef predicate = pipeline.get(predicateName, EntityType.PREDICATE);
+        subPropertyCollections.put(predicateName, pipeline.get(predicate, "subProperties"));
+        predicates.put(predicateName, predicate);
+      }
 
       if(!predicates.containsKey(predicateName)) {
-        Entity predicate = toWeaverPredicate(predicateName);
-        Entity collection = weaver.collection();
+        EntityRef predicate = toWeaverPredicate(predicateName);
+        delta.created(predicateName);
+        EntityRef collection = pipeline.collection();
         subPropertyCollections.put(predicateName, collection);
-        predicate.linkEntity("subProperties", collection.toShallowEntity());
+        pipeline.link(predicate, "subProperties", collection);
         predicates.put(predicateName, predicate);
       }
     }
-    now = new Date().getTime();
-    System.out.println(now - then);
 
     // 2b)
-    then = new Date().getTime();
 
-    nodes = ImportXmi.queryXPath(PredicateCreator.XPATH_TO_XMI_ASSOCIATIONS);
+    for(XmiIndex.Association association : index.getAssociations()) {
+
+      if(!delta.isChanged(XmiManifest.key(association))) {
+        continue;
+      }
 
-    for(int i = 0; i < nodes.getLength(); i++) {
-      Node association = nodes.item(i);
+      String nameId = association.getName();
+      String sourceId = association.getSourceName();
+      String targetId = association.getTargetName();
 
-      String nameId = ImportXmi.queryXPath(association, "@name").item(0).getNodeValue();
-      String sourceId = ImportXmi.queryXPath(association, XPATH_TO_XMI_ASSOCIATIONS_SOURCE).item(0).getNodeValue();
-      String targetId = ImportXmi.queryXPath(association, XPATH_TO_XMI_ASSOCIATIONS_TARGET).item(0).getNodeValue();
+      if(sourceId == null || targetId == null) {
+        System.out.println("Association "+nameId+" has no source or target name.");
+        continue;
+      }
 
-      String predicateId = domainPredicateRangeToId(sourceId, nameId, targetId);
+      String predicateId = names.domainPredicateRangeToId(sourceId, nameId, targetId);
 
-      if(!predicates.containsKey(predicateId)) {
+      if(predicates.containsKey(predicateId)) {
         System.out.println("Predicate "+predicateId+" was defined twice!");
         continue;
       }
-      Entity predicate = toWeaverPredicate(predicateId, predicates.get(nameId).toShallowEntity());
-      subPropertyCollections.get(nameId).linkEntity(predicateId, predicate.toShallowEntity());
-      predicates.put(predicateId, predicate);
+      if(delta.exists(predicateId)) {
+        predicates.put(predicateId, pipeline.get(predicateId, EntityType.PREDICATE));
+      } else {
+        EntityRef predicate = toWeaverPredicate(predicateId, predicates.get(nameId));
+        pipeline.link(subPropertyCollections.get(nameId), predicateId, predicate);
+        predicates.put(predicateId, predicate);
+        delta.created(predicateId);
+      }
 
+      delta.written(XmiManifest.key(association), XmiManifest.PREDICATE, predicateId);
       domains.put(predicateId, sourceId);
       ranges.put(predicateId, targetId);
     }
-    now = new Date().getTime();
-    System.out.println(now - then);
+    pipeline.flush();
+    listener.stageFinished("predicates", System.nanoTime() - then);
 
     return predicates;
   }
 
-  public void setDomainAndRange(HashMap<String, Entity> individuals) {
-    for(String predicateId : predicates.keySet()) {
-      Entity domainEntity = individuals.get(domains.get(predicateId));
-      Entity rangeEntity = individuals.get(ranges.get(predicateId));
-      Entity predicate = predicates.get(predicateId);
+  /**
+   * Queues the predicates the individuals refer to, run() does this when it was not done before
+   *
+   * @return the predicates, flush the pipeline before using them in another one
+   */
+  public HashMap<String, EntityRef> createBuiltins() {
+    for(String predicateId : new String[] { "rdf:type", "rdfs:subClassOf", "rdfs:label" }) {
+      if(!predicates.containsKey(predicateId)) {
+        predicates.put(predicateId, builtinPredicate(predicateId));
+      }
+    }
+    return predicates;
+  }
 
-      predicate.updateEntityLink("domain", domainEntity.toShallowEntity());
-      predicate.updateEntityLink("range",  rangeEntity.toShallowEntity());
+  /**
+   * Links the predicates of the associations to the individuals of their source (domain) and target (range).
+   * All pairs are resolved in memory first, the link updates are written in the batches of the pipeline.
+   *
+   * @param individuals individualId -> individual, as returned by IndividualCreator.run()
+   * @return the predicates that were not linked, with the reason
+   */
+  public Map<String, String> setDomainAndRange(Map<String, EntityRef> individuals) {
+    long then = System.nanoTime();
+
+    LinkedHashMap<String, String> unresolved = new LinkedHashMap<>();
+    HashMap<String, EntityRef> existing = new HashMap<>();
+    for(Map.Entry<String, String> domain : domains.entrySet()) {
+      String predicateId = domain.getKey();
+      String domainId = names.deAccent(domain.getValue());
+      String rangeId = names.deAccent(ranges.get(predicateId));
+
+      EntityRef domainEntity = individual(individuals, existing, domainId);
+      EntityRef rangeEntity = individual(individuals, existing, rangeId);
+      if(domainEntity == null || rangeEntity == null) {
+        unresolved.put(predicateId, domainEntity == null ? "domain "+domainId+" not found" : "range "+rangeId+" not found");
+        continue;
+      }
+
+      EntityRef predicate = predicates.get(predicateId);
+      pipeline.updateLink(predicate, "domain", domainEntity);
+      pipeline.updateLink(predicate, "range",  rangeEntity);
+    }
+    pipeline.flush();
+
+    if(!unresolved.isEmpty()) {
+      System.out.println("No domain and range for "+unresolved.size()+" of "+domains.size()+" predicates:");
+      int printed = 0;
+      for(Map.Entry<String, String> predicate : unresolved.entrySet()) {
+        if(printed++ == MAX_REPORTED) {
+          System.out.println("  ... and "+(unresolved.size() - MAX_REPORTED)+" more");
+          break;
+        }
+        System.out.println("  "+predicate.getKey()+": "+predicate.getValue());
+      }
+    }
+    listener.stageFinished("domains", System.nanoTime() - then);
+    return unresolved;
+  }
+
+  /**
+   * @return the individual created by this import, or written by a previous one (see setDelta)
+   */
+  private EntityRef individual(Map<String, EntityRef> individuals, HashMap<String, EntityRef> existing, String individualId) {
+    EntityRef individual = individuals.get(individualId);
+    if(individual == null && delta.exists(individualId)) {
+      individual = existing.get(individualId);
+      if(individual == null) {
+        individual = pipeline.get(individualId, EntityType.INDIVIDUAL);
+        existing.put(individualId, individual);
+      }
     }
+    return individual;
   }
 
 
 
 
 
-  public Entity toWeaverPredicate(String predicateId) {
+  private EntityRef builtinPredicate(String predicateId) {
+    if(delta.exists(predicateId)) {
+      return pipeline.get(predicateId, EntityType.PREDICATE);
+    }
+    delta.created(predicateId);
+    return toWeaverPredicate(predicateId);
+  }
+
+  public EntityRef toWeaverPredicate(String predicateId) {
     return toWeaverPredicate(predicateId, null);
   }
-  public Entity toWeaverPredicate(String predicateId, ShallowEntity subPropertyOf) {
+  public EntityRef toWeaverPredicate(String predicateId, EntityRef subPropertyOf) {
 
-    ConcurrentHashMap<String, ShallowEntity> relations = new ConcurrentHashMap<>();
+    ConcurrentHashMap<String, EntityRef> relations = new ConcurrentHashMap<>();
     if(subPropertyOf != null) {
       relations.put("super", subPropertyOf);
     }
 
     ConcurrentHashMap<String, String> attributes = new ConcurrentHashMap<>();
-    attributes.put("preferredName", predicateNameFromId(predicateId));
-    attributes.put("reversedName", predicateReversedNameFromId(predicateId));
-    attributes.put("source", ImportXmi.source);
+    attributes.put("preferredName", names.predicateNameFromId(predicateId));
+    attributes.put("reversedName", names.predicateReversedNameFromId(predicateId));
+    attributes.put("source", source);
 
 
 
-    Entity predicate = weaver.add(attributes, EntityType.PREDICATE, predicateId, relations);
+    EntityRef predicate = pipeline.add(attributes, EntityType.PREDICATE, predicateId, relations);
 
     if(subPropertyOf == null) {
-      try {
-        Entity predicatesCollection = weaver.get(dataset.getRelations().get("predicates").getId());
-        predicatesCollection.linkEntity(predicate.getId(), predicate.toShallowEntity());
-      } catch (EntityNotFoundException e) {
-        throw new RuntimeException("Weaver connection error/node not found (toWeaverIndividual).");
-      }
+      pipeline.link(predicatesCollection, predicate);
     }
 
     return predicate;
 
 
   }
-
-
-
-
-  private String domainPredicateRangeToId(String domain, String predicate, String range) {
-    String result = "lib:";
-    result += domain.replace(":","");
-    result += "-";
-    result += predicate.replace(":","");
-    result += "-";
-    result += range.replace(":","");
-    return result;
-  }
-
-  private String predicateNameFromId(String predicateId) {
-    String predicate = predicateId.split(":")[1];
-    String result = "";
-    for (int i = 0; i < predicate.length(); i++) {
-      char c = predicate.charAt(i);
-      if(Character.isUpperCase(c)) {
-        if (result.length() > 0) {
-          result += " ";
-        }
-        result += String.valueOf(c).toLowerCase();
-      } else {
-        result += String.valueOf(c);
-      }
-    }
-    return result;
-  }
-
-  private String predicateReversedNameFromId(String predicateId) {
-
-    String predicateName = predicateNameFromId(predicateId);
-    String result = "";
-    for (int i = predicateName.length()-1; i > -1; i--) {
-      char c = predicateName.charAt(i);
-      result += String.valueOf(c);
-    }
-    return result;
-  }
-}
\ No newline at end of file
+}
@@ -0,0 +1,66 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.UUID;
+
+/**
+ * Derives the ids of properties from what they state, so the same property gets the same id on every import.
+ *
+ * The id is a hash of (dataset, type, subject, predicate, object) in the form of a version 8 (custom) UUID.
+ * The hash is computed with plain arithmetic, no SecureRandom or MessageDigest is involved, so generating ids
+ * is cheap and does not contend between threads.
+ */
+public class PropertyIds {
+
+  private static final long OFFSET_1 = 0xcbf29ce484222325L;
+  private static final long OFFSET_2 = 0x84222325cbf29ce4L;
+  private static final long PRIME_1 = 0x100000001b3L;
+  private static final long PRIME_2 = 0x9e3779b97f4a7c15L;
+
+  private final String datasetId;
+
+  public PropertyIds(String datasetId) {
+    this.datasetId = datasetId;
+  }
+
+  /**
+   * @param type entity type of the property
+   * @param object id of the object entity, or the value of a value property
+   */
+  public String id(String type, String subject, String predicate, String object) {
+    return uuid(datasetId, type, subject, predicate, object).toString();
+  }
+
+  static UUID uuid(String... parts) {
+    long h1 = OFFSET_1;
+    long h2 = OFFSET_2;
+    for(String part : parts) {
+      // The length separates the parts, so ("ab", "c") and ("a", "bc") differ
+      int length = part == null ? -1 : part.length();
+      h1 = (h1 ^ length) * PRIME_1;
+      h2 = (h2 ^ length) * PRIME_2;
+      for(int i = 0; i < length; i++) {
+        char c = part.charAt(i);
+        h1 = (h1 ^ c) * PRIME_1;
+        h2 = (h2 ^ c) * PRIME_2;
+      }
+    }
+    h1 = mix(h1 + h2);
+    h2 = mix(h2 + h1);
+
+    long mostSignificant = (h1 & ~0xf000L) | 0x8000L;                              // version 8
+    long leastSignificant = (h2 & 0x3fffffffffffffffL) | 0x8000000000000000L;      // IETF variant
+    return new UUID(mostSignificant, leastSignificant);
+  }
+
+  /**
+   * Finalization step of MurmurHash3, spreads every input bit over the whole value
+   */
+  private static long mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    h *= 0xc4ceb9fe1a85ec53L;
+    h ^= h >>> 33;
+    return h;
+  }
+}
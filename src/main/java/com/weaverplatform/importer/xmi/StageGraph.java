@@ -0,0 +1,124 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Runs the stages of an import with explicit dependencies.
+ *
+ * A stage is started on the executor as soon as all stages it depends on are finished, so independent stages
+ * run in parallel. Dependencies have to be added before the stages that need them, which keeps the graph
+ * free of cycles. When a stage fails no new stages are started and run() throws after the running ones ended.
+ */
+public class StageGraph {
+
+  private final ExecutorService executor;
+  private final LinkedHashMap<String, Stage> stages = new LinkedHashMap<>();
+
+  private int running;
+  private Throwable failure;
+  private String failedStage;
+
+  public StageGraph(ExecutorService executor) {
+    this.executor = executor;
+  }
+
+  public StageGraph add(String name, Runnable task, String... dependencies) {
+    if(stages.containsKey(name)) {
+      throw new IllegalArgumentException("Stage "+name+" is already defined.");
+    }
+    Stage stage = new Stage(name, task);
+    for(String dependency : dependencies) {
+      Stage required = stages.get(dependency);
+      if(required == null) {
+        throw new IllegalArgumentException("Stage "+name+" depends on unknown stage "+dependency+".");
+      }
+      required.dependents.add(stage);
+    }
+    stage.dependencies.addAll(Arrays.asList(dependencies));
+    stages.put(name, stage);
+    return this;
+  }
+
+  public synchronized void run() {
+    running = 0;
+    failure = null;
+    failedStage = null;
+    for(Stage stage : stages.values()) {
+      stage.remaining = stage.dependencies.size();
+    }
+    for(Stage stage : stages.values()) {
+      if(stage.remaining == 0) {
+        start(stage);
+      }
+    }
+
+    try {
+      while(running > 0) {
+        wait();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while running import stages", e);
+    }
+
+    if(failure != null) {
+      if(failure instanceof RuntimeException) {
+        throw (RuntimeException) failure;
+      }
+      throw new RuntimeException("Import stage "+failedStage+" failed", failure);
+    }
+  }
+
+  private void start(final Stage stage) {
+    running++;
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        Throwable error = null;
+        try {
+          stage.task.run();
+        } catch (Throwable t) {
+          error = t;
+        }
+        finished(stage, error);
+      }
+    });
+  }
+
+  private synchronized void finished(Stage stage, Throwable error) {
+    running--;
+    if(error != null) {
+      if(failure == null) {
+        failure = error;
+        failedStage = stage.name;
+      }
+    } else if(failure == null) {
+      for(Stage dependent : stage.dependents) {
+        if(--dependent.remaining == 0) {
+          start(dependent);
+        }
+      }
+    }
+    notifyAll();
+  }
+
+
+
+  private static class Stage {
+
+    private final String name;
+    private final Runnable task;
+    private final List<String> dependencies = new ArrayList<>();
+    private final List<Stage> dependents = new ArrayList<>();
+    private int remaining;
+
+    private Stage(String name, Runnable task) {
+      this.name = name;
+      this.task = task;
+    }
+  }
+}
@@ -0,0 +1,170 @@
+package com.weaverplatform.importer.xmi;
+
+import org.w3c.dom.Element;
+
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reads, maps and writes the classes of a model at the same time, as three stages connected by bounded queues:
+ *
+ *   reader  streams the xmi (see XmiStreamReader) and queues every mapped element, the time until the end of
+ *           the stream is recorded as the parse stage
+ *   mapper  adds the elements to the index and queues the individuals and views of new classes in units of
+ *           UNIT_SIZE classes
+ *   writer  flushes the units to the sink
+ *
+ * A stage that is ahead waits when its queue is full, so only a few elements and units are in memory at a time
+ * and the first individuals are written while the rest of the file is still read. The associations and
+ * generalizations are only indexed, they are written by the stages that run after the whole model is read.
+ */
+class StreamingStage {
+
+  static final int ELEMENT_QUEUE_SIZE = 1024;
+  static final int UNIT_QUEUE_SIZE = 4;
+  static final int UNIT_SIZE = 100;               // classes per unit
+
+  private static final Object END = new Object();
+  private static final long POLL_MILLIS = 100;
+
+  private final XmiIndex index;
+  private final IndividualCreator individualCreator;
+  private final ViewCreator viewCreator;
+  private final ExecutorService executor;
+  private final ImportListener listener;
+
+  private final BlockingQueue<Object> elements = new ArrayBlockingQueue<>(ELEMENT_QUEUE_SIZE);
+  private final BlockingQueue<Object> units = new ArrayBlockingQueue<>(UNIT_QUEUE_SIZE);
+
+  private int classes = 0;                        // classes and stubs of the index that are mapped
+  private int stubs = 0;
+  private long started;
+
+  /**
+   * @param executor runs the reader and the writer, the mapper runs on the calling thread
+   */
+  StreamingStage(XmiIndex index, IndividualCreator individualCreator, ViewCreator viewCreator, ExecutorService executor, ImportListener listener) {
+    this.index = index;
+    this.individualCreator = individualCreator;
+    this.viewCreator = viewCreator;
+    this.executor = executor;
+    this.listener = listener;
+  }
+
+  void run(final InputStream inputStream) {
+    started = System.nanoTime();
+
+    Future<Void> reader = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        try {
+          new XmiStreamReader().read(inputStream, new XmiStreamReader.ElementHandler() {
+            @Override
+            public void element(Element element) {
+              try {
+                elements.put(element);
+              } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while reading", e);
+              }
+            }
+          });
+          listener.stageFinished("parse", System.nanoTime() - started);
+        } finally {
+          elements.put(END);
+        }
+        return null;
+      }
+    });
+
+    Future<Void> writer = executor.submit(new Callable<Void>() {
+      @Override
+      public Void call() throws InterruptedException {
+        boolean first = true;
+        for(Object unit = units.take(); unit != END; unit = units.take()) {
+          if(first) {
+            listener.stageFinished("firstWrite", System.nanoTime() - started);
+            first = false;
+          }
+          ((WritePipeline) unit).flush();
+        }
+        return null;
+      }
+    });
+
+    try {
+      map(writer);
+      put(units, END, writer);
+      writer.get();
+      reader.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while streaming", e);
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("Problem streaming", e.getCause());
+    } finally {
+      reader.cancel(true);
+      writer.cancel(true);
+    }
+    listener.stageFinished("stream", System.nanoTime() - started);
+  }
+
+  private void map(Future<Void> writer) throws InterruptedException, ExecutionException {
+    WritePipeline individualUnit = individualCreator.getPipeline().forkConcurrent();
+    WritePipeline viewUnit = viewCreator.getPipeline().forkConcurrent();
+    int queued = 0;
+
+    for(Object element = elements.take(); element != END; element = elements.take()) {
+      index.add((Element) element);
+
+      while(classes < index.getClasses().size()) {
+        queued += create(individualCreator.mapXmiClass(index.getClasses().get(classes++)), individualUnit, viewUnit);
+      }
+      while(stubs < index.getStubs().size()) {
+        queued += create(individualCreator.mapStub(index.getStubs().get(stubs++)), individualUnit, viewUnit);
+      }
+
+      if(queued >= UNIT_SIZE) {
+        put(units, individualUnit, writer);
+        put(units, viewUnit, writer);
+        individualUnit = individualCreator.getPipeline().forkConcurrent();
+        viewUnit = viewCreator.getPipeline().forkConcurrent();
+        queued = 0;
+      }
+    }
+    if(queued > 0) {
+      put(units, individualUnit, writer);
+      put(units, viewUnit, writer);
+    }
+  }
+
+  private int create(String individualId, WritePipeline individualUnit, WritePipeline viewUnit) {
+    if(individualId == null) {
+      return 0;
+    }
+    boolean individual = individualCreator.createIndividual(individualUnit, individualId);
+    boolean view = viewCreator.createView(viewUnit, individualId);
+    return individual || view ? 1 : 0;
+  }
+
+  /**
+   * Waits for room in the queue, unless the stage that takes from it failed
+   */
+  private static void put(BlockingQueue<Object> queue, Object item, Future<Void> consumer) throws InterruptedException, ExecutionException {
+    while(!queue.offer(item, POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+      if(consumer.isDone()) {
+        consumer.get();
+        throw new IllegalStateException("Writer stopped before the end of the stream");
+      }
+    }
+  }
+}
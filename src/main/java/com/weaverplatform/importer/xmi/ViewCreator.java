@@ -1,12 +1,11 @@
 package com.weaverplatform.importer.xmi;
 
-import com.weaverplatform.sdk.*;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import com.weaverplatform.sdk.EntityType;
+import com.weaverplatform.sdk.RelationKeys;
 
-import java.util.Date;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -15,25 +14,25 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class ViewCreator {
 
-
-  public static final String XPATH_TO_XMI_ASSOCIATIONS_SOURCE = "UML:ModelElement.taggedValue//UML:TaggedValue[@tag='ea_sourceName']/@value";
-  public static final String XPATH_TO_XMI_ASSOCIATIONS_TARGET = "UML:ModelElement.taggedValue//UML:TaggedValue[@tag='ea_targetName']/@value";
-
-
-
-  private Weaver weaver;
-  private Entity dataset;
+  private WritePipeline pipeline;
+  private XmiIndex index;
+  private EntityRef viewsList;
   private HashMap<String, String> xmiClasses;
   private HashMap<String, String> xmiValueClasses;
 
-  HashMap<String, Entity> views;
+  HashMap<String, EntityRef> views = new HashMap<>();
+  private HashMap<String, EntityRef> filters = new HashMap<>();   // individualId -> filters collection of its view
+  private XmiDelta delta = XmiDelta.full();
+  private ImportListener listener = ImportListener.NONE;
+  private String source = ImportXmi.DEFAULT_SOURCE;
 
 
-  public ViewCreator(Weaver weaver, HashMap<String, String> xmiClasses, HashMap<String, String> xmiValueClasses, Entity dataset) {
-    this.weaver = weaver;
+  public ViewCreator(WritePipeline pipeline, XmiIndex index, HashMap<String, String> xmiClasses, HashMap<String, String> xmiValueClasses, EntityRef viewsList) {
+    this.pipeline = pipeline;
+    this.index = index;
     this.xmiClasses = xmiClasses;
     this.xmiValueClasses = xmiValueClasses;
-    this.dataset = dataset;
+    this.viewsList = viewsList;
   }
 
 
@@ -41,41 +40,63 @@ public class ViewCreator {
 
 
   /**
-   * The start method with custom operations on this class
+   * Only write the views of classes that changed since the previous import
    *
-   * @throws java.io.IOException
+   * @param delta
    */
-  public HashMap<String, Entity> run() {
-
+  public void setDelta(XmiDelta delta) {
+    this.delta = delta;
+  }
 
-    long then, now;
+  public void setListener(ImportListener listener) {
+    this.listener = listener;
+  }
 
+  /**
+   * The value of the source attribute of the entities this creator writes
+   *
+   * @param source
+   */
+  public void setSource(String source) {
+    this.source = source;
+  }
 
+  /**
+   * The start method with custom operations on this class
+   *
+   * @throws java.io.IOException
+   */
+  public HashMap<String, EntityRef> run() {
 
-    then = new Date().getTime();
 
-    views = new HashMap<>();
+    long then = System.nanoTime();
 
     // Individuals and Views
-    views.put("rdfs:Class", toWeaverView("rdfs:Class"));
+    if(!views.containsKey("rdfs:Class") && !delta.exists("view:rdfs:Class")) {
+      views.put("rdfs:Class", toWeaverView("rdfs:Class"));
+      delta.created("view:rdfs:Class");
+    }
 
     Iterator<Map.Entry<String, String>> iterator = xmiClasses.entrySet().iterator();
     while (iterator.hasNext()) {
       Map.Entry<String, String> pair = iterator.next();
       String xmiClassName = pair.getValue();
 
+      // Written by a previous import
+      if(!delta.isChanged(XmiManifest.classKey(pair.getKey())) || delta.exists("view:"+xmiClassName)) {
+        continue;
+      }
+
       if(!views.containsKey(xmiClassName)) {
         views.put(xmiClassName, toWeaverView(xmiClassName));
+        delta.created("view:"+xmiClassName);
       }
     }
-    now = new Date().getTime();
-    System.out.println(now - then);
 
+    addFiltersToViews(index.getAssociations());
+    pipeline.flush();
 
-//    addFiltersToViews(queryXPath(XPATH_TO_XMI_ASSOCIATIONS));
-
-    now = new Date().getTime();
-    System.out.println(now - then);
+    listener.stageFinished("views", System.nanoTime() - then);
     return views;
   }
 
@@ -83,16 +104,24 @@ public class ViewCreator {
 
 
 
-  public void addFiltersToViews(NodeList associations) {
-
-    // Add extra filters
-    for (int i = 0; i < associations.getLength(); i++) {
+  /**
+   * Adds a filter for every association to the view of its source class. The ends of the associations come
+   * from the index and the filters collections are the ones created with the views, so nothing is read from
+   * Weaver and all filters are written in the batches of the pipeline.
+   *
+   * Views written by a previous import (see setDelta) do not get filters for new associations.
+   */
+  public void addFiltersToViews(List<XmiIndex.Association> associations) {
 
-      Node association = associations.item(i);
+    for (XmiIndex.Association association : associations) {
 
-      String sourceId = ImportXmi.queryXPath(association, XPATH_TO_XMI_ASSOCIATIONS_SOURCE).item(0).getAttributes().getNamedItem("type").getNodeValue();
-      String targetId = ImportXmi.queryXPath(association, XPATH_TO_XMI_ASSOCIATIONS_TARGET).item(0).getAttributes().getNamedItem("type").getNodeValue();
+      String sourceId = association.getSourceType();
+      String targetId = association.getTargetType();
 
+      if(sourceId == null || targetId == null) {
+        System.out.println("Association "+association.getName()+" has no source or target end.");
+        continue;
+      }
 
       if(!xmiClasses.containsKey(sourceId)) {
         System.out.println("Id "+sourceId+" not in the xmiClasses list.");
@@ -101,36 +130,41 @@ public class ViewCreator {
 
       String individualId = xmiClasses.get(sourceId);
 
-      if(!views.containsKey(individualId)) {
-        System.out.println("Id "+individualId+" not in the views list.");
+      EntityRef viewFilters = filters.get(individualId);
+      if(viewFilters == null) {
+        if(!delta.exists("view:"+individualId)) {
+          System.out.println("Id "+individualId+" not in the views list.");
+        }
         continue;
       }
 
-      Entity view = views.get(individualId);
-      Entity filters = weaver.get(view.getRelations().get("filters").getId());
-
-      // Create weaver filter
-      String predicate = association.getAttributes().getNamedItem("name").getTextContent();
-
       // Link to string
       if(xmiValueClasses.containsKey(targetId)) {
-
-
-        String datatype = xmiValueClasses.get(targetId);
-
-        Entity linkFilter = createWeaverFilter(predicate, "any-value", "string", "");
-        filters.linkEntity(linkFilter.getId(), linkFilter.toShallowEntity());
+        pipeline.link(viewFilters, createWeaverFilter(association.getName(), "any-value", "string", ""));
 
       // Link to individual
       } else {
-
-        String target = xmiClasses.get(targetId);
-
-        Entity linkFilter = createWeaverFilter(predicate, "any-individual", "individual", "");
-        filters.linkEntity(linkFilter.getId(), linkFilter.toShallowEntity());
+        pipeline.link(viewFilters, createWeaverFilter(association.getName(), "any-individual", "individual", ""));
       }
+    }
+  }
 
+  /**
+   * Queues the view of an individual on a pipeline forked from the one of this creator, unless it is already created
+   *
+   * @return true when the view was queued
+   */
+  boolean createView(WritePipeline unit, String individualId) {
+    if(views.containsKey(individualId) || delta.exists("view:"+individualId)) {
+      return false;
     }
+    delta.created("view:"+individualId);
+    views.put(individualId, toWeaverView(unit, individualId));
+    return true;
+  }
+
+  WritePipeline getPipeline() {
+    return pipeline;
   }
 
   /**
@@ -139,46 +173,54 @@ public class ViewCreator {
    * @param individualId
    * @return
    */
-  public Entity toWeaverView(String individualId) {
+  public EntityRef toWeaverView(String individualId) {
+    return toWeaverView(pipeline, individualId);
+  }
+
+  private EntityRef toWeaverView(WritePipeline pipeline, String individualId) {
 
     ConcurrentHashMap<String, String> defaultAttributes = new ConcurrentHashMap<>();
     defaultAttributes.put("name", individualId+" view");
-    defaultAttributes.put("source", ImportXmi.source);
+    defaultAttributes.put("source", source);
 
-    Entity view = weaver.add(defaultAttributes, EntityType.VIEW);
+    EntityRef view = pipeline.add(defaultAttributes, EntityType.VIEW);
 
 
-    Entity viewsList = weaver.get(dataset.getRelations().get("models").getId());
-    viewsList.linkEntity(view.getId(), view.toShallowEntity());
+    pipeline.link(viewsList, view);
 
-    Entity filters = weaver.collection();
-    view.linkEntity("filters", filters.toShallowEntity());
+    EntityRef viewFilters = pipeline.collection();
+    pipeline.link(view, "filters", viewFilters);
+    filters.put(individualId, viewFilters);
 
-    Entity filter = createWeaverFilter("rdf:type", "this-individual", "individual", individualId);
+    EntityRef filter = createWeaverFilter(pipeline, "rdf:type", "this-individual", "individual", individualId);
 
-    filters.linkEntity(filter.getId(), filter.toShallowEntity());
+    pipeline.link(viewFilters, filter);
 
     return view;
   }
 
-  public Entity createWeaverFilter(String predicate, String operation, String conditionType, String pointer) {
+  public EntityRef createWeaverFilter(String predicate, String operation, String conditionType, String pointer) {
+    return createWeaverFilter(pipeline, predicate, operation, conditionType, pointer);
+  }
+
+  private EntityRef createWeaverFilter(WritePipeline pipeline, String predicate, String operation, String conditionType, String pointer) {
 
     ConcurrentHashMap<String, String> typeFilterAttributes = new ConcurrentHashMap<>();
     typeFilterAttributes.put("label", predicate);
     typeFilterAttributes.put("predicate", predicate);
     typeFilterAttributes.put("celltype", conditionType);
-    Entity filter = weaver.add(typeFilterAttributes, "$FILTER");
+    EntityRef filter = pipeline.add(typeFilterAttributes, "$FILTER");
 
-    Entity conditions = weaver.collection();
-    filter.linkEntity("conditions", conditions.toShallowEntity());
+    EntityRef conditions = pipeline.collection();
+    pipeline.link(filter, "conditions", conditions);
 
     ConcurrentHashMap<String, String> conditionAttributes = new ConcurrentHashMap<>();
     conditionAttributes.put("operation", operation);
     conditionAttributes.put("individual", pointer);
     conditionAttributes.put("conditiontype", conditionType);
-    Entity condition = weaver.add(conditionAttributes, "$CONDITION");
+    EntityRef condition = pipeline.add(conditionAttributes, "$CONDITION");
 
-    conditions.linkEntity(condition.getId(), condition.toShallowEntity());
+    pipeline.link(conditions, condition);
 
     return filter;
   }
@@ -190,25 +232,18 @@ public class ViewCreator {
    * @param id
    * @return
    */
-  public Entity toWeaverAnnotation(ConcurrentHashMap<String, String> attributes, String id) {
+  public EntityRef toWeaverAnnotation(ConcurrentHashMap<String, String> attributes, String id) {
 
     // Retrieve parent
-    Entity individual = weaver.get(id);
-    if(individual == null) {
-      throw new RuntimeException("Individual "+id+" not foud.");
-    }
+    EntityRef individual = pipeline.get(id);
 
     // Retrieve annotations collection
-    ShallowEntity shallowAnnotations = individual.getRelations().get(RelationKeys.ANNOTATIONS);
-    if(shallowAnnotations == null) {
-      throw new RuntimeException("Annotations not found for "+id);
-    }
-    Entity annotations = weaver.get(shallowAnnotations.getId());
+    EntityRef annotations = pipeline.get(individual, RelationKeys.ANNOTATIONS);
 
     // Create first annotation
-    Entity annotation = weaver.add(attributes == null ? new ConcurrentHashMap<String, String>() : attributes, EntityType.ANNOTATION);
+    EntityRef annotation = pipeline.add(attributes == null ? new ConcurrentHashMap<String, String>() : attributes, EntityType.ANNOTATION);
 
-    annotations.linkEntity(annotation.getId(), annotation.toShallowEntity());
+    pipeline.link(annotations, annotation);
 
     return annotation;
   }
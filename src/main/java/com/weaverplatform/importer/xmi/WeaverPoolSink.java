@@ -0,0 +1,143 @@
+package com.weaverplatform.importer.xmi;
+
+import com.weaverplatform.sdk.Weaver;
+import com.weaverplatform.sdk.websocket.WeaverSocket;
+
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes to Weaver over several connections.
+ *
+ * Every call is sent over the connection that owns the entity it writes to: entities with an id are owned by
+ * the connection their id hashes to, entities that get a generated id by the connection that created them.
+ * All writes to one entity therefore go out in order over one socket, while writes to different entities
+ * are spread over all sockets. The owners of the most recent generated ids are kept (see WeaverSink.cache),
+ * an entity that was created long before is routed by its id again.
+ */
+public class WeaverPoolSink implements ImportSink {
+
+  private final List<Weaver> connections;
+  private final ImportSink[] shards;
+  private final Map<String, Integer> owners = WeaverSink.cache(WeaverSink.CACHE_SIZE);   // generated id -> shard
+  private final AtomicInteger next = new AtomicInteger();
+
+  public WeaverPoolSink(List<Weaver> connections) {
+    this(connections, weaverSinks(connections));
+  }
+
+  /**
+   * Routes over other sinks instead of Weaver connections, to test the routing
+   */
+  WeaverPoolSink(ImportSink... shards) {
+    this(Collections.<Weaver>emptyList(), shards);
+  }
+
+  private WeaverPoolSink(List<Weaver> connections, ImportSink[] shards) {
+    if(shards.length == 0) {
+      throw new IllegalArgumentException("A pool needs at least one connection.");
+    }
+    this.connections = connections;
+    this.shards = shards;
+  }
+
+  /**
+   * @return a sink per connection, sharing the types of the entities they wrote
+   */
+  private static ImportSink[] weaverSinks(List<Weaver> connections) {
+    ImportSink[] sinks = new ImportSink[connections.size()];
+    Map<String, String> types = WeaverSink.cache(WeaverSink.CACHE_SIZE);
+    for(int i = 0; i < sinks.length; i++) {
+      sinks[i] = new WeaverSink(connections.get(i), types);
+    }
+    return sinks;
+  }
+
+  /**
+   * Opens a pool of connections to the Weaver server
+   */
+  public static WeaverPoolSink connect(String weaverUrl, int size) {
+    List<Weaver> connections = new ArrayList<>();
+    for(int i = 0; i < size; i++) {
+      Weaver weaver = new Weaver("ins:");
+      weaver.connect(new WeaverSocket(URI.create(weaverUrl)));
+      connections.add(weaver);
+    }
+    return new WeaverPoolSink(connections);
+  }
+
+  @Override
+  public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+    if(id != null) {
+      return shard(id).add(attributes, type, id, relations);
+    }
+    int shard = nextShard();
+    String generated = shards[shard].add(attributes, type, null, relations);
+    owners.put(generated, shard);
+    return generated;
+  }
+
+  @Override
+  public String collection() {
+    int shard = nextShard();
+    String generated = shards[shard].collection();
+    owners.put(generated, shard);
+    return generated;
+  }
+
+  @Override
+  public String get(String id) {
+    return shard(id).get(id);
+  }
+
+  @Override
+  public String dataset(String datasetId) {
+    return shard(datasetId).dataset(datasetId);
+  }
+
+  @Override
+  public String relation(String id, String key) {
+    return shard(id).relation(id, key);
+  }
+
+  @Override
+  public void link(String parentId, String key, String childId) {
+    shard(parentId).link(parentId, key, childId);
+  }
+
+  @Override
+  public void updateLink(String parentId, String key, String childId) {
+    shard(parentId).updateLink(parentId, key, childId);
+  }
+
+  @Override
+  public void close() {
+    for(ImportSink shard : shards) {
+      shard.close();
+    }
+  }
+
+  public List<Weaver> getConnections() {
+    return connections;
+  }
+
+  ImportSink[] getShards() {
+    return shards;
+  }
+
+  private ImportSink shard(String id) {
+    Integer owner = owners.get(id);
+    if(owner != null) {
+      return shards[owner];
+    }
+    return shards[(id.hashCode() & 0x7fffffff) % shards.length];
+  }
+
+  private int nextShard() {
+    return (next.getAndIncrement() & 0x7fffffff) % shards.length;
+  }
+}
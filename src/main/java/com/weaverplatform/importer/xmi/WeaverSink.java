@@ -0,0 +1,153 @@
+package com.weaverplatform.importer.xmi;
+
+import com.weaverplatform.sdk.Entity;
+import com.weaverplatform.sdk.ShallowEntity;
+import com.weaverplatform.sdk.Weaver;
+import com.weaverplatform.sdk.model.Dataset;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Writes to a Weaver server through the weaver-sdk-java.
+ *
+ * The entities that are written or looked up are kept, so linking to them does not need another round trip.
+ * Entities are only linked to by id and type, so sinks that share their types (see WeaverPoolSink) can link
+ * to each others entities. Both are kept in caches of CACHE_SIZE entries, the least recently used entries
+ * are fetched again when they are needed, so a sink that is used by many imports (see ImportServer) does
+ * not grow without bound.
+ */
+public class WeaverSink implements ImportSink {
+
+  public static final int CACHE_SIZE = 100000;
+
+  private final Weaver weaver;
+  private final Map<String, Entity> entities = cache(CACHE_SIZE);   // id -> Weaver entity
+  private final Map<String, String> types;                          // id -> entity type
+
+  public WeaverSink(Weaver weaver) {
+    this(weaver, WeaverSink.<String>cache(CACHE_SIZE));
+  }
+
+  WeaverSink(Weaver weaver, Map<String, String> types) {
+    this.weaver = weaver;
+    this.types = types;
+  }
+
+  /**
+   * @return a thread safe map that forgets its least recently used entry beyond maxEntries entries
+   */
+  static <V> Map<String, V> cache(final int maxEntries) {
+    return Collections.synchronizedMap(new LinkedHashMap<String, V>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, V> eldest) {
+        return size() > maxEntries;
+      }
+    });
+  }
+
+  @Override
+  public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+    ConcurrentHashMap<String, String> weaverAttributes = attributes instanceof ConcurrentHashMap ? (ConcurrentHashMap<String, String>) attributes : new ConcurrentHashMap<>(attributes);
+
+    Entity entity;
+    if(id == null) {
+      entity = weaver.add(weaverAttributes, type);
+    } else if(relations == null) {
+      entity = weaver.add(weaverAttributes, type, id);
+    } else {
+      ConcurrentHashMap<String, ShallowEntity> shallowRelations = new ConcurrentHashMap<>();
+      for(Map.Entry<String, String> relation : relations.entrySet()) {
+        shallowRelations.put(relation.getKey(), shallow(relation.getValue()));
+      }
+      entity = weaver.add(weaverAttributes, type, id, shallowRelations);
+    }
+    return keep(entity, "add "+type);
+  }
+
+  @Override
+  public String collection() {
+    return keep(weaver.collection(), "collection");
+  }
+
+  @Override
+  public String get(String id) {
+    Entity entity = weaver.get(id);
+    keep(entity, "get "+id);
+    return entity.getType();
+  }
+
+  @Override
+  public String dataset(String datasetId) {
+    return keep(new Dataset(weaver, datasetId).get(datasetId), "dataset "+datasetId);
+  }
+
+  @Override
+  public String relation(String id, String key) {
+    ShallowEntity relation = entity(id).getRelations().get(key);
+    return relation != null ? relation.getId() : null;
+  }
+
+  @Override
+  public void link(String parentId, String key, String childId) {
+    entity(parentId).linkEntity(key, shallow(childId));
+  }
+
+  @Override
+  public void updateLink(String parentId, String key, String childId) {
+    entity(parentId).updateEntityLink(key, shallow(childId));
+  }
+
+  @Override
+  public void close() {
+    weaver.close();
+  }
+
+  public Weaver getWeaver() {
+    return weaver;
+  }
+
+  Map<String, String> getTypes() {
+    return types;
+  }
+
+  private String keep(Entity entity, String operation) {
+    if(entity == null) {
+      throw new RuntimeException("Weaver connection error/node not found ("+operation+").");
+    }
+    entities.put(entity.getId(), entity);
+    if(entity.getType() != null) {
+      types.put(entity.getId(), entity.getType());
+    }
+    return entity.getId();
+  }
+
+  /**
+   * @return the entity as relation or link target, only fetched when neither it nor its type is known
+   */
+  private ShallowEntity shallow(String id) {
+    Entity entity = entities.get(id);
+    if(entity != null) {
+      return entity.toShallowEntity();
+    }
+    String type = types.get(id);
+    if(type != null) {
+      return new ShallowEntity(id, type);
+    }
+    return entity(id).toShallowEntity();
+  }
+
+  /**
+   * @return the kept entity, fetched from Weaver when it was written by an earlier run
+   */
+  private Entity entity(String id) {
+    Entity entity = entities.get(id);
+    if(entity == null) {
+      entity = weaver.get(id);
+      keep(entity, "get "+id);
+    }
+    return entity;
+  }
+}
@@ -0,0 +1,345 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Collects the creates and links of the creators and writes them to an ImportSink in batches.
+ *
+ * Calls return an EntityRef immediately, the operations are executed when the batch is full or on flush().
+ * A batch is executed in waves: every operation runs in the first wave after the waves of the operations it
+ * depends on, so an entity always exists before it is related or linked to, and a relation is only looked
+ * up after the links to the same parent and key that were queued before it. The operations within one wave
+ * are independent and are sent to the sink concurrently.
+ *
+ * Every operation is still one call to the sink, batching does not reduce the number of round trips, it
+ * overlaps the independent ones. With an executor the sink is called from several threads at once and must
+ * be safe for that, a pipeline without executor calls it from one thread at a time. When an operation fails
+ * flush() throws its exception after the other operations of its wave have finished, the later waves of the
+ * batch are not executed.
+ */
+public class WritePipeline {
+
+  public static final int DEFAULT_BATCH_SIZE = 100;
+  public static final int DEFAULT_PARALLELISM = 8;
+
+  private final ImportSink sink;
+  private final OperationLog log;
+  private final int batchSize;
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+
+  private List<Operation> batch = new ArrayList<>();
+
+  private ImportListener listener = ImportListener.NONE;
+  private Journal journal;
+  private String name;
+  private long sequence = 0;
+  private int forks = 0;
+
+  public WritePipeline(ImportSink sink) {
+    this(sink, DEFAULT_BATCH_SIZE);
+  }
+
+  public WritePipeline(ImportSink sink, int batchSize) {
+    this(sink, batchSize, Executors.newFixedThreadPool(DEFAULT_PARALLELISM), true);
+  }
+
+  /**
+   * @param executor runs the operations of a wave concurrently, null to run them one after another
+   */
+  public WritePipeline(ImportSink sink, int batchSize, ExecutorService executor) {
+    this(sink, batchSize, executor, false);
+  }
+
+  /**
+   * A pipeline that appends all operations to the log instead of writing them to a sink
+   */
+  public WritePipeline(OperationLog log) {
+    this(null, log, Integer.MAX_VALUE, null, false);
+  }
+
+  private WritePipeline(ImportSink sink, int batchSize, ExecutorService executor, boolean ownsExecutor) {
+    this(sink, null, batchSize, executor, ownsExecutor);
+  }
+
+  private WritePipeline(ImportSink sink, OperationLog log, int batchSize, ExecutorService executor, boolean ownsExecutor) {
+    this.sink = sink;
+    this.log = log;
+    this.batchSize = Math.max(1, batchSize);
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+
+
+  public EntityRef add(ConcurrentHashMap<String, String> attributes, String type) {
+    return enqueue(Operation.add(attributes, type, null, null)).getResult();
+  }
+
+  public EntityRef add(ConcurrentHashMap<String, String> attributes, String type, String id) {
+    return enqueue(Operation.add(attributes, type, id, null)).getResult();
+  }
+
+  public EntityRef add(ConcurrentHashMap<String, String> attributes, String type, String id, Map<String, EntityRef> relations) {
+    return enqueue(Operation.add(attributes, type, id, relations)).getResult();
+  }
+
+  public EntityRef collection() {
+    return enqueue(Operation.collection()).getResult();
+  }
+
+  /**
+   * Looks up an existing entity by id
+   */
+  public EntityRef get(String id) {
+    return get(id, null);
+  }
+
+  /**
+   * Looks up an existing entity of a known type by id
+   */
+  public EntityRef get(String id, String type) {
+    return enqueue(Operation.get(id, type)).getResult();
+  }
+
+  /**
+   * Looks up the dataset entity
+   */
+  public EntityRef dataset(String datasetId) {
+    return enqueue(Operation.dataset(datasetId)).getResult();
+  }
+
+  /**
+   * Looks up the entity the relation with this key of parent points to
+   */
+  public EntityRef get(EntityRef parent, String relationKey) {
+    return enqueue(Operation.relation(parent, relationKey)).getResult();
+  }
+
+  /**
+   * Links child to parent with the id of child as key
+   */
+  public void link(EntityRef parent, EntityRef child) {
+    link(parent, null, child);
+  }
+
+  public void link(EntityRef parent, String key, EntityRef child) {
+    enqueue(Operation.link(Operation.Kind.LINK, parent, key, child));
+  }
+
+  public void updateLink(EntityRef parent, String key, EntityRef child) {
+    enqueue(Operation.link(Operation.Kind.UPDATE_LINK, parent, key, child));
+  }
+
+
+
+  /**
+   * Receives the latency of every operation that is executed
+   */
+  public void setListener(ImportListener listener) {
+    this.listener = listener;
+  }
+
+  /**
+   * Records every completed write in the journal and skips the writes it already contains
+   *
+   * @param journal
+   * @param name identifies this pipeline in the journal, should be the same on every run
+   */
+  public synchronized void setJournal(Journal journal, String name) {
+    this.journal = journal;
+    this.name = name;
+  }
+
+  private synchronized Operation enqueue(Operation operation) {
+    if(journal != null) {
+      operation.journalKey = name + ":" + sequence++;
+    }
+    batch.add(operation);
+    if(batch.size() >= batchSize) {
+      flush();
+    }
+    return operation;
+  }
+
+  /**
+   * Writes all queued operations, returns when they are all executed
+   */
+  public synchronized void flush() {
+    if(batch.isEmpty()) {
+      return;
+    }
+    List<Operation> operations = batch;
+    batch = new ArrayList<>();
+
+    Set<Operation> queued = new HashSet<>(operations);
+    HashMap<List<Object>, Operation> links = new HashMap<>();     // parent and key -> last link queued to it
+    List<List<Operation>> waves = new ArrayList<>();
+    for(Operation operation : operations) {
+      operation.wave = 0;
+      List<Object> slot = slot(operation);
+      if(operation.getKind() == Operation.Kind.RELATION && links.containsKey(slot)) {
+        operation.wave = links.get(slot).wave + 1;
+      }
+      for(EntityRef dependency : operation.getDependencies()) {
+        Operation source = dependency.getSource();
+        if(source == null) {
+          continue;
+        }
+        if(!queued.contains(source)) {
+          throw new IllegalStateException("Entity "+dependency.getId()+" is queued in another pipeline that is not flushed.");
+        }
+        operation.wave = Math.max(operation.wave, source.wave + 1);
+      }
+      if(operation.getKind() == Operation.Kind.LINK || operation.getKind() == Operation.Kind.UPDATE_LINK) {
+        links.put(slot, operation);
+      }
+      while(waves.size() <= operation.wave) {
+        waves.add(new ArrayList<Operation>());
+      }
+      waves.get(operation.wave).add(operation);
+    }
+
+    for(List<Operation> wave : waves) {
+      execute(wave);
+    }
+  }
+
+  /**
+   * @return the parent and key an operation reads or writes, the parent by id when it is known
+   */
+  private static List<Object> slot(Operation operation) {
+    EntityRef parent = operation.getParent();
+    if(parent == null) {
+      return null;
+    }
+    String key = operation.getKey();
+    if(key == null && operation.getChild() != null) {
+      key = operation.getChild().getId();
+    }
+    return Arrays.<Object>asList(parent.getId() != null ? parent.getId() : parent, key);
+  }
+
+  private void execute(List<Operation> wave) {
+    if(log != null) {
+      for(Operation operation : wave) {
+        log.append(operation);
+      }
+      return;
+    }
+
+    if(wave.size() == 1 || executor == null) {
+      try {
+        for(Operation operation : wave) {
+          execute(operation);
+        }
+      } finally {
+        flushJournal();
+      }
+      return;
+    }
+
+    List<Callable<Void>> tasks = new ArrayList<>();
+    for(final Operation operation : wave) {
+      tasks.add(new Callable<Void>() {
+        @Override
+        public Void call() {
+          execute(operation);
+          return null;
+        }
+      });
+    }
+
+    try {
+      for(Future<Void> future : executor.invokeAll(tasks)) {
+        future.get();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException("Interrupted while writing to sink", e);
+    } catch (ExecutionException e) {
+      if(e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw new RuntimeException("Problem writing to sink", e.getCause());
+    } finally {
+      flushJournal();
+    }
+  }
+
+  private void execute(Operation operation) {
+    if(journal != null && operation.isWrite() && journal.isCompleted(operation.journalKey)) {
+      operation.skip(journal.getId(operation.journalKey));
+      journal.skipped();
+      return;
+    }
+
+    long start = System.nanoTime();
+    operation.execute(sink);
+    listener.operationExecuted(operation.getKind(), System.nanoTime() - start);
+
+    if(journal == null || !operation.isWrite()) {
+      return;
+    }
+    journal.record(operation.journalKey, operation.getResult() != null ? operation.getResult().getId() : null);
+  }
+
+  private void flushJournal() {
+    if(journal != null) {
+      journal.flush();
+    }
+  }
+
+  /**
+   * Flushes and releases the threads of this pipeline
+   */
+  public void close() {
+    try {
+      flush();
+    } finally {
+      if(ownsExecutor && executor != null) {
+        executor.shutdown();
+      }
+    }
+  }
+
+  /**
+   * A pipeline to the same sink that is only written on flush() and runs its operations in order.
+   * Used for a unit of work that is executed as a whole by another thread.
+   */
+  public WritePipeline fork() {
+    return fork(null);
+  }
+
+  /**
+   * Like fork(), but the waves of the fork are written concurrently by the executor of this pipeline
+   */
+  public WritePipeline forkConcurrent() {
+    return fork(executor);
+  }
+
+  private synchronized WritePipeline fork(ExecutorService executor) {
+    WritePipeline fork = new WritePipeline(sink, log, Integer.MAX_VALUE, executor, false);
+    fork.setListener(listener);
+    if(journal != null) {
+      fork.setJournal(journal, name + "/" + forks++);
+    }
+    return fork;
+  }
+
+  public int getBatchSize() {
+    return batchSize;
+  }
+}
@@ -0,0 +1,52 @@
+package com.weaverplatform.importer.xmi;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import javax.xml.xpath.XPath;
+import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
+import javax.xml.xpath.XPathExpressionException;
+import javax.xml.xpath.XPathFactory;
+import java.util.HashMap;
+
+/**
+ * Compiled xpath expressions for one document, keyed by query.
+ *
+ * XPath objects are not thread safe, so an instance should only be used by one thread (see ImportXmi.queryXPath).
+ * Every import has its own caches, so imports of different documents do not share any state.
+ */
+class XPathCache {
+
+  private final Document document;
+  private final XPath xpath;
+  private final HashMap<String, XPathExpression> expressions = new HashMap<>();
+
+  public XPathCache(Document document) {
+    this.document = document;
+    this.xpath = XPathFactory.newInstance().newXPath();
+    this.xpath.setNamespaceContext(new ImportXmi.NamespaceResolver(document));
+  }
+
+  public Document getDocument() {
+    return document;
+  }
+
+  public NodeList evaluate(String query, Node node) {
+    try {
+      return (NodeList) compile(query).evaluate(node, XPathConstants.NODESET);
+    } catch (XPathExpressionException e) {
+      throw new RuntimeException("XPath query could not be executed.", e);
+    }
+  }
+
+  private XPathExpression compile(String query) throws XPathExpressionException {
+    XPathExpression expression = expressions.get(query);
+    if(expression == null) {
+      expression = xpath.compile(query);
+      expressions.put(query, expression);
+    }
+    return expression;
+  }
+}
@@ -0,0 +1,194 @@
+package com.weaverplatform.importer.xmi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Difference between the manifest of the previous import and the current model.
+ *
+ * The creators only write the elements that are added or changed. Entities that were written by an earlier
+ * import are referenced by id instead of created again, and a changed element updates the entities stored
+ * for it in the manifest: a renamed class keeps its individual and gets a new label, a generalization to
+ * another superclass replaces its property. Changes that would need entities to be removed or renamed in
+ * Weaver (removed elements, changed associations) are refused by validate() before anything is written.
+ */
+public class XmiDelta {
+
+  private static final int MAX_REPORTED = 10;
+
+  private final XmiManifest previous;
+  private final XmiManifest current;
+  private final XmiManifest written = new XmiManifest();     // ids of the entities written by this import
+
+  private final Set<String> added = new TreeSet<>();
+  private final Set<String> changed = new TreeSet<>();
+  private final Set<String> removed = new TreeSet<>();
+  private final Set<String> created = Collections.synchronizedSet(new TreeSet<String>());
+
+  public XmiDelta(XmiManifest previous, XmiManifest current) {
+    this.previous = previous;
+    this.current = current;
+
+    for(String key : current.getFingerprints().keySet()) {
+      String fingerprint = previous.getFingerprints().get(key);
+      if(fingerprint == null) {
+        added.add(key);
+      } else if(!fingerprint.equals(current.getFingerprints().get(key))) {
+        changed.add(key);
+      }
+    }
+    for(String key : previous.getFingerprints().keySet()) {
+      if(!current.getFingerprints().containsKey(key)) {
+        removed.add(key);
+      }
+    }
+  }
+
+  /**
+   * Delta without a previous import, everything is written
+   */
+  public static XmiDelta full() {
+    return new XmiDelta(new XmiManifest(), new XmiManifest());
+  }
+
+  /**
+   * @return true if the element is new or changed since the previous import and should be written
+   */
+  public boolean isChanged(String elementKey) {
+    return !current.getFingerprints().containsKey(elementKey) || added.contains(elementKey) || changed.contains(elementKey);
+  }
+
+  /**
+   * @throws RuntimeException when the model changed in a way this import can not write to Weaver
+   */
+  public void validate(XmiIndex index) {
+    List<String> problems = new ArrayList<>();
+    for(String key : removed) {
+      problems.add(key+" was removed, entities are not removed from Weaver");
+    }
+
+    HashMap<String, String> individualIds = new HashMap<>();   // XMI_ID -> individual id
+    for(XmiIndex.XmiClass xmiClass : index.getClasses()) {
+      String key = XmiManifest.classKey(xmiClass.getXmiId());
+      if(xmiClass.getName() != null && xmiClass.getIsLeaf() != null && !"true".equals(xmiClass.getIsLeaf())) {
+        individualIds.put(xmiClass.getXmiId(), individualId(key, NameProcessor.DEFAULT.deAccent(xmiClass.getName())));
+      } else if(changed.contains(key) && previous.getId(key, XmiManifest.INDIVIDUAL) != null) {
+        problems.add(key+" is no longer an individual, its individual is not removed from Weaver");
+      }
+    }
+    for(XmiIndex.XmiClass stub : index.getStubs()) {
+      String key = XmiManifest.classKey(stub.getXmiId());
+      if(stub.getName() != null) {
+        individualIds.put(stub.getXmiId(), individualId(key, NameProcessor.DEFAULT.deAccent(stub.getName())));
+      } else if(changed.contains(key) && previous.getId(key, XmiManifest.INDIVIDUAL) != null) {
+        problems.add(key+" has no name anymore, its individual is not removed from Weaver");
+      }
+    }
+    for(XmiIndex.Generalization generalization : index.getGeneralizations()) {
+      String key = XmiManifest.key(generalization);
+      String subject = previous.getId(key, XmiManifest.SUBJECT);
+      if(changed.contains(key) && subject != null && !subject.equals(individualIds.get(generalization.getSubtype()))) {
+        problems.add(key+" has another subclass, the property of "+subject+" is not removed from Weaver");
+      }
+    }
+    for(XmiIndex.Association association : index.getAssociations()) {
+      String key = XmiManifest.key(association);
+      if(changed.contains(key)) {
+        problems.add(key+" changed, the ids of its predicates follow from its names and can not be renamed in Weaver");
+      }
+    }
+
+    if(problems.isEmpty()) {
+      return;
+    }
+    StringBuilder message = new StringBuilder("Problem with the changes since the previous import, import the model into a new dataset:");
+    for(int i = 0; i < problems.size() && i < MAX_REPORTED; i++) {
+      message.append("\n  ").append(problems.get(i));
+    }
+    if(problems.size() > MAX_REPORTED) {
+      message.append("\n  ... and ").append(problems.size() - MAX_REPORTED).append(" more");
+    }
+    throw new RuntimeException(message.toString());
+  }
+
+  /**
+   * @return the individual id of a class, the one written by the previous import so a renamed class keeps it
+   */
+  public String individualId(String classKey, String name) {
+    String individualId = previous.getId(classKey, XmiManifest.INDIVIDUAL);
+    return individualId != null ? individualId : name;
+  }
+
+  /**
+   * @return the id of the entity the previous import wrote for the element in this role, null if there is none
+   */
+  public String getId(String elementKey, String role) {
+    return previous.getId(elementKey, role);
+  }
+
+  /**
+   * Records the id of an entity this import wrote for an element, so a next import can update it
+   */
+  public void written(String elementKey, String role, String id) {
+    synchronized (written) {
+      written.putId(elementKey, role, id);
+    }
+  }
+
+  /**
+   * @return true if the entity was written by a previous import
+   */
+  public boolean exists(String entityKey) {
+    return previous.getEntities().contains(entityKey);
+  }
+
+  /**
+   * Records an entity that is written by this import
+   */
+  public void created(String entityKey) {
+    created.add(entityKey);
+  }
+
+  /**
+   * @return the manifest to store for the next import
+   */
+  public XmiManifest toManifest() {
+    XmiManifest manifest = new XmiManifest();
+    manifest.getFingerprints().putAll(current.getFingerprints());
+    manifest.getEntities().addAll(previous.getEntities());
+    synchronized (created) {
+      manifest.getEntities().addAll(created);
+    }
+    for(Map.Entry<String, TreeMap<String, String>> element : previous.getIds().entrySet()) {
+      if(current.getFingerprints().containsKey(element.getKey())) {
+        manifest.getIds().put(element.getKey(), new TreeMap<>(element.getValue()));
+      }
+    }
+    synchronized (written) {
+      for(Map.Entry<String, TreeMap<String, String>> element : written.getIds().entrySet()) {
+        for(Map.Entry<String, String> id : element.getValue().entrySet()) {
+          manifest.putId(element.getKey(), id.getKey(), id.getValue());
+        }
+      }
+    }
+    return manifest;
+  }
+
+  public Set<String> getAdded() {
+    return added;
+  }
+
+  public Set<String> getChanged() {
+    return changed;
+  }
+
+  public Set<String> getRemoved() {
+    return removed;
+  }
+}
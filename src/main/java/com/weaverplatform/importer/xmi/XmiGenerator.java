@@ -0,0 +1,274 @@
+package com.weaverplatform.importer.xmi;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+
+/**
+ * Writes synthetic Enterprise Architect xmi 1.1 models, for testing the importer at scale.
+ *
+ * The model is streamed, every element is derived from its number, so models of millions of elements are
+ * written in constant memory. Classes form generalization trees of the configured depth and fan-out,
+ * associations connect random classes (with a fixed seed, so the same settings give the same model).
+ */
+public class XmiGenerator {
+
+  public static final String UML_NAMESPACE = "omg.org/UML1.3";
+
+  private int classes = 1000;
+  private int valueClasses = 100;
+  private int stubs = 10;
+  private int associations = 1000;
+  private int depth = 4;
+  private int fanOut = 5;
+  private long seed = 1;
+
+  /**
+   * Number of normal classes, these become individuals
+   */
+  public void setClasses(int classes) {
+    this.classes = classes;
+  }
+
+  /**
+   * Number of leaf classes with a DataType attribute, these become value types
+   */
+  public void setValueClasses(int valueClasses) {
+    this.valueClasses = valueClasses;
+  }
+
+  public void setStubs(int stubs) {
+    this.stubs = stubs;
+  }
+
+  public void setAssociations(int associations) {
+    this.associations = associations;
+  }
+
+  /**
+   * @param depth number of generalization levels below the root of every class tree, 0 for no generalizations
+   * @param fanOut number of subclasses of every class in a tree
+   */
+  public void setGeneralizations(int depth, int fanOut) {
+    this.depth = depth;
+    this.fanOut = Math.max(1, fanOut);
+  }
+
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  /**
+   * @return the number of elements (classes, stubs, generalizations and associations) the model has
+   */
+  public long getElementCount() {
+    long treeSize = treeSize();
+    long elements = (long) classes + valueClasses + stubs + associations;
+    for(int i = 0; i < classes; i++) {
+      if(parent(i, treeSize) >= 0) {
+        elements++;
+      }
+    }
+    return elements;
+  }
+
+  public void write(File file) {
+    try (OutputStream out = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024)) {
+      write(out);
+    } catch (IOException e) {
+      throw new RuntimeException("Problem writing file "+file, e);
+    }
+  }
+
+  public void write(OutputStream out) {
+    try {
+      XMLStreamWriter writer = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+      writer.writeStartDocument("UTF-8", "1.0");
+      writer.writeStartElement("XMI");
+      writer.writeAttribute("xmi.version", "1.1");
+      writer.writeNamespace("UML", UML_NAMESPACE);
+
+      writer.writeStartElement("XMI.header");
+      writer.writeStartElement("XMI.documentation");
+      element(writer, "XMI.exporter", "Enterprise Architect");
+      element(writer, "XMI.exporterVersion", "2.5");
+      writer.writeEndElement();
+      writer.writeEndElement();
+
+      writer.writeStartElement("XMI.content");
+      writer.writeStartElement("UML", "Model", UML_NAMESPACE);
+      writer.writeAttribute("name", "EA Model");
+      writer.writeAttribute("xmi.id", "MX_EAID_1");
+      writer.writeStartElement("UML", "Namespace.ownedElement", UML_NAMESPACE);
+      writer.writeStartElement("UML", "Package", UML_NAMESPACE);
+      writer.writeAttribute("name", "Model");
+      writer.writeAttribute("xmi.id", "EAPK_1");
+      writer.writeStartElement("UML", "Namespace.ownedElement", UML_NAMESPACE);
+
+      for(int i = 0; i < classes; i++) {
+        writeClass(writer, i);
+      }
+      for(int i = 0; i < valueClasses; i++) {
+        writeValueClass(writer, i);
+      }
+      long treeSize = treeSize();
+      for(int i = 0; i < classes; i++) {
+        int parent = parent(i, treeSize);
+        if(parent >= 0) {
+          writer.writeEmptyElement("UML", "Generalization", UML_NAMESPACE);
+          writer.writeAttribute("subtype", classId(i));
+          writer.writeAttribute("supertype", classId(parent));
+          writer.writeAttribute("xmi.id", "EAID_G"+i);
+          writer.writeAttribute("visibility", "public");
+        }
+      }
+      Random random = new Random(seed);
+      for(int i = 0; i < associations; i++) {
+        writeAssociation(writer, i, random);
+      }
+
+      writer.writeEndElement();   // Namespace.ownedElement
+      writer.writeEndElement();   // Package
+      writer.writeEndElement();   // Namespace.ownedElement
+      writer.writeEndElement();   // Model
+
+      for(int i = 0; i < stubs; i++) {
+        writer.writeEmptyElement("EAStub");
+        writer.writeAttribute("xmi.id", "EAID_S"+i);
+        writer.writeAttribute("name", "lib:Stub"+i);
+        writer.writeAttribute("UMLType", "Class");
+      }
+      writer.writeEndElement();   // XMI.content
+
+      writer.writeStartElement("XMI.extension");
+      writer.writeAttribute("xmi.extender", "Enterprise Architect 2.5");
+      writer.writeStartElement("EAModel.diagram");
+      writer.writeEmptyElement("diagram");
+      writer.writeAttribute("xmi.id", "EAID_DIAGRAM_1");
+      writer.writeAttribute("name", "Model");
+      writer.writeEndElement();
+      writer.writeEndElement();
+
+      writer.writeEndElement();   // XMI
+      writer.writeEndDocument();
+      writer.flush();
+      writer.close();
+    } catch (XMLStreamException e) {
+      throw new RuntimeException("Problem writing xmi", e);
+    }
+  }
+
+  private void writeClass(XMLStreamWriter writer, int i) throws XMLStreamException {
+    writer.writeStartElement("UML", "Class", UML_NAMESPACE);
+    writer.writeAttribute("name", className(i));
+    writer.writeAttribute("xmi.id", classId(i));
+    writer.writeAttribute("visibility", "public");
+    writer.writeAttribute("namespace", "EAPK_1");
+    writer.writeAttribute("isLeaf", "false");
+    writer.writeAttribute("isAbstract", "false");
+    writer.writeStartElement("UML", "ModelElement.taggedValue", UML_NAMESPACE);
+    taggedValue(writer, "ea_stype", "Class");
+    writer.writeEndElement();
+    writer.writeEndElement();
+  }
+
+  private void writeValueClass(XMLStreamWriter writer, int i) throws XMLStreamException {
+    writer.writeStartElement("UML", "Class", UML_NAMESPACE);
+    writer.writeAttribute("name", valueClassName(i));
+    writer.writeAttribute("xmi.id", "EAID_V"+i);
+    writer.writeAttribute("visibility", "public");
+    writer.writeAttribute("namespace", "EAPK_1");
+    writer.writeAttribute("isLeaf", "true");
+    writer.writeAttribute("isAbstract", "false");
+    writer.writeStartElement("UML", "Attribute", UML_NAMESPACE);
+    writer.writeAttribute("name", "DataType");
+    writer.writeStartElement("UML", "ModelElement.taggedValue", UML_NAMESPACE);
+    taggedValue(writer, "type", i % 2 == 0 ? "xsd:string" : "xsd:integer");
+    writer.writeEndElement();
+    writer.writeEndElement();
+    writer.writeEndElement();
+  }
+
+  private void writeAssociation(XMLStreamWriter writer, int i, Random random) throws XMLStreamException {
+    int source = random.nextInt(classes);
+    boolean toValue = valueClasses > 0 && random.nextInt(4) == 0;
+    int target = toValue ? random.nextInt(valueClasses) : random.nextInt(classes);
+
+    writer.writeStartElement("UML", "Association", UML_NAMESPACE);
+    writer.writeAttribute("name", "lib:heeftRelatie"+i);
+    writer.writeAttribute("xmi.id", "EAID_A"+i);
+    writer.writeAttribute("visibility", "public");
+    writer.writeStartElement("UML", "ModelElement.taggedValue", UML_NAMESPACE);
+    taggedValue(writer, "ea_type", "Association");
+    taggedValue(writer, "ea_sourceName", IndividualCreator.deAccent(className(source)));
+    taggedValue(writer, "ea_targetName", toValue ? valueClassName(target) : IndividualCreator.deAccent(className(target)));
+    writer.writeEndElement();
+    writer.writeStartElement("UML", "Association.connection", UML_NAMESPACE);
+    writer.writeEmptyElement("UML", "AssociationEnd", UML_NAMESPACE);
+    writer.writeAttribute("isNavigable", "false");
+    writer.writeAttribute("type", classId(source));
+    writer.writeEmptyElement("UML", "AssociationEnd", UML_NAMESPACE);
+    writer.writeAttribute("isNavigable", "true");
+    writer.writeAttribute("type", toValue ? "EAID_V"+target : classId(target));
+    writer.writeEndElement();
+    writer.writeEndElement();
+  }
+
+  /**
+   * Classes are numbered breadth first within trees of 1 + fanOut + ... + fanOut^depth classes
+   */
+  private long treeSize() {
+    long treeSize = 1;
+    long level = 1;
+    for(int d = 0; d < depth && treeSize < classes; d++) {
+      level *= fanOut;
+      treeSize += level;
+    }
+    return treeSize;
+  }
+
+  /**
+   * @return the number of the superclass of class i, -1 for the root of a tree
+   */
+  private int parent(int i, long treeSize) {
+    long position = i % treeSize;
+    if(position == 0) {
+      return -1;
+    }
+    return (int) (i - position + (position - 1) / fanOut);
+  }
+
+  private static String classId(int i) {
+    return "EAID_C"+i;
+  }
+
+  /**
+   * Every third class name has an accent, as in the Dutch models the importer is used for
+   */
+  private static String className(int i) {
+    return i % 3 == 0 ? "lib:Kunstw\u00e9rk"+i : "lib:Klasse"+i;
+  }
+
+  private static String valueClassName(int i) {
+    return "lib:Waarde"+i;
+  }
+
+  private static void element(XMLStreamWriter writer, String name, String text) throws XMLStreamException {
+    writer.writeStartElement(name);
+    writer.writeCharacters(text);
+    writer.writeEndElement();
+  }
+
+  private static void taggedValue(XMLStreamWriter writer, String tag, String value) throws XMLStreamException {
+    writer.writeEmptyElement("UML", "TaggedValue", UML_NAMESPACE);
+    writer.writeAttribute("tag", tag);
+    writer.writeAttribute("value", value);
+  }
+
+}
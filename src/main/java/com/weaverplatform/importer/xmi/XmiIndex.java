@@ -0,0 +1,305 @@
+package com.weaverplatform.importer.xmi;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Index of all xmi elements the creators map to Weaver objects, built in one traversal of the document.
+ *
+ * The contents match what the xpaths in IndividualCreator and PredicateCreator select, in document order.
+ */
+public class XmiIndex {
+
+  private List<XmiClass> classes = new ArrayList<>();
+  private List<XmiClass> stubs = new ArrayList<>();
+  private HashMap<String, String> datatypes = new HashMap<>();     // XMI_ID -> datatype of leaf class
+  private List<Generalization> generalizations = new ArrayList<>();
+  private List<Association> associations = new ArrayList<>();
+
+  public static XmiIndex build(Document document) {
+    XmiIndex index = new XmiIndex();
+    if(document.getDocumentElement() != null) {
+      index.visit(document.getDocumentElement());
+    }
+    return index;
+  }
+
+  /**
+   * Adds the elements of a subtree, for an index that is built while the document is read
+   */
+  public void add(Element element) {
+    visit(element);
+  }
+
+  private void visit(Element root) {
+
+    // Iterative depth-first walk, so deep models do not exhaust the stack
+    Node node = root;
+    while (node != null) {
+      if(node.getNodeType() == Node.ELEMENT_NODE) {
+        indexElement((Element) node);
+      }
+
+      if(node.getFirstChild() != null) {
+        node = node.getFirstChild();
+        continue;
+      }
+      while (node != null && node != root && node.getNextSibling() == null) {
+        node = node.getParentNode();
+      }
+      node = (node == null || node == root) ? null : node.getNextSibling();
+    }
+  }
+
+  private void indexElement(Element element) {
+    switch (element.getNodeName()) {
+      case "UML:Class":
+        XmiClass xmiClass = new XmiClass(attribute(element, "xmi.id"), attribute(element, "name"), attribute(element, "isLeaf"));
+        classes.add(xmiClass);
+        if("true".equals(xmiClass.getIsLeaf())) {
+          String datatype = findDatatype(element);
+          if(datatype != null) {
+            datatypes.put(xmiClass.getXmiId(), datatype);
+          }
+        }
+        break;
+
+      case "EAStub":
+        if("Class".equals(attribute(element, "UMLType"))) {
+          stubs.add(new XmiClass(attribute(element, "xmi.id"), attribute(element, "name"), null));
+        }
+        break;
+
+      case "UML:Generalization":
+        generalizations.add(new Generalization(attribute(element, "xmi.id"), attribute(element, "subtype"), attribute(element, "supertype")));
+        break;
+
+      case "UML:Association":
+        String name = attribute(element, "name");
+        if(name != null) {
+          String[] ends = findAssociationEnds(element);
+          associations.add(new Association(
+            attribute(element, "xmi.id"),
+            name,
+            findTaggedValue(element, "ea_sourceName"),
+            findTaggedValue(element, "ea_targetName"),
+            ends[0],
+            ends[1]));
+        }
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Same as IndividualCreator.XPATH_TO_XMI_DATATYPE, the last matching value wins.
+   */
+  private static String findDatatype(Element xmiClass) {
+    String datatype = null;
+    for (Node child = xmiClass.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if(isElement(child, "UML:Attribute") && "DataType".equals(attribute((Element) child, "name"))) {
+        List<Element> taggedValues = new ArrayList<>();
+        collectDescendants((Element) child, "UML:TaggedValue", taggedValues);
+        for(Element taggedValue : taggedValues) {
+          if("type".equals(attribute(taggedValue, "tag")) && attribute(taggedValue, "value") != null) {
+            datatype = attribute(taggedValue, "value");
+          }
+        }
+      }
+    }
+    return datatype;
+  }
+
+  /**
+   * Same as PredicateCreator.XPATH_TO_XMI_ASSOCIATIONS_SOURCE/TARGET, the first matching value wins.
+   */
+  private static String findTaggedValue(Element association, String tag) {
+    for (Node child = association.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if(isElement(child, "UML:ModelElement.taggedValue")) {
+        List<Element> taggedValues = new ArrayList<>();
+        collectDescendants((Element) child, "UML:TaggedValue", taggedValues);
+        for(Element taggedValue : taggedValues) {
+          if(tag.equals(attribute(taggedValue, "tag")) && attribute(taggedValue, "value") != null) {
+            return attribute(taggedValue, "value");
+          }
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * The xmi ids of the classes at the source and target end of an association. Ends tagged with ea_end are
+   * taken by their tag, otherwise the first end is the source and the second the target.
+   */
+  private static String[] findAssociationEnds(Element association) {
+    String[] ends = new String[2];
+    int position = 0;
+    for (Node child = association.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if(!isElement(child, "UML:Association.connection")) {
+        continue;
+      }
+      for (Node end = child.getFirstChild(); end != null; end = end.getNextSibling()) {
+        if(!isElement(end, "UML:AssociationEnd")) {
+          continue;
+        }
+        String side = findTaggedValue((Element) end, "ea_end");
+        int slot = "source".equals(side) ? 0 : "target".equals(side) ? 1 : position;
+        if(slot < 2) {
+          ends[slot] = attribute((Element) end, "type");
+        }
+        position++;
+      }
+    }
+    return ends;
+  }
+
+  private static void collectDescendants(Element parent, String name, List<Element> result) {
+    for (Node child = parent.getFirstChild(); child != null; child = child.getNextSibling()) {
+      if(child.getNodeType() == Node.ELEMENT_NODE) {
+        if(name.equals(child.getNodeName())) {
+          result.add((Element) child);
+        }
+        collectDescendants((Element) child, name, result);
+      }
+    }
+  }
+
+  private static boolean isElement(Node node, String name) {
+    return node.getNodeType() == Node.ELEMENT_NODE && name.equals(node.getNodeName());
+  }
+
+  private static String attribute(Element element, String name) {
+    return element.hasAttribute(name) ? element.getAttribute(name) : null;
+  }
+
+
+
+  public List<XmiClass> getClasses() {
+    return classes;
+  }
+
+  public List<XmiClass> getStubs() {
+    return stubs;
+  }
+
+  public HashMap<String, String> getDatatypes() {
+    return datatypes;
+  }
+
+  public List<Generalization> getGeneralizations() {
+    return generalizations;
+  }
+
+  public List<Association> getAssociations() {
+    return associations;
+  }
+
+
+
+  public static class XmiClass {
+
+    private final String xmiId;
+    private final String name;
+    private final String isLeaf;
+
+    public XmiClass(String xmiId, String name, String isLeaf) {
+      this.xmiId = xmiId;
+      this.name = name;
+      this.isLeaf = isLeaf;
+    }
+
+    public String getXmiId() {
+      return xmiId;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getIsLeaf() {
+      return isLeaf;
+    }
+  }
+
+  public static class Generalization {
+
+    private final String xmiId;
+    private final String subtype;
+    private final String supertype;
+
+    public Generalization(String xmiId, String subtype, String supertype) {
+      this.xmiId = xmiId;
+      this.subtype = subtype;
+      this.supertype = supertype;
+    }
+
+    public String getXmiId() {
+      return xmiId;
+    }
+
+    public String getSubtype() {
+      return subtype;
+    }
+
+    public String getSupertype() {
+      return supertype;
+    }
+  }
+
+  public static class Association {
+
+    private final String xmiId;
+    private final String name;
+    private final String sourceName;
+    private final String targetName;
+    private final String sourceType;
+    private final String targetType;
+
+    public Association(String xmiId, String name, String sourceName, String targetName, String sourceType, String targetType) {
+      this.xmiId = xmiId;
+      this.name = name;
+      this.sourceName = sourceName;
+      this.targetName = targetName;
+      this.sourceType = sourceType;
+      this.targetType = targetType;
+    }
+
+    public String getXmiId() {
+      return xmiId;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getSourceName() {
+      return sourceName;
+    }
+
+    public String getTargetName() {
+      return targetName;
+    }
+
+    /**
+     * @return the xmi id of the class at the source end
+     */
+    public String getSourceType() {
+      return sourceType;
+    }
+
+    /**
+     * @return the xmi id of the class at the target end
+     */
+    public String getTargetType() {
+      return targetType;
+    }
+  }
+}
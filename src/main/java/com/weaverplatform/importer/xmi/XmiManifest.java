@@ -0,0 +1,174 @@
+package com.weaverplatform.importer.xmi;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * Fingerprints of the xmi elements of an import and the keys of the Weaver entities written for them.
+ *
+ * Stored between runs so a next import of the same model only writes what changed (see XmiDelta).
+ * The file has one line per element ("element key fingerprint"), one per entity ("entity key") and one
+ * per entity written for an element ("id element-key role entity-id"), for example the label property of
+ * a class, so a next import can update it.
+ */
+public class XmiManifest {
+
+  // Roles of the entities written for an element
+  public static final String INDIVIDUAL = "individual";
+  public static final String TYPE = "type";
+  public static final String LABEL = "label";
+  public static final String SUBJECT = "subject";
+  public static final String PROPERTY = "property";
+  public static final String PREDICATE = "predicate";
+
+  private final TreeMap<String, String> fingerprints = new TreeMap<>();    // element key -> fingerprint
+  private final TreeSet<String> entities = new TreeSet<>();                 // keys of written entities
+  private final TreeMap<String, TreeMap<String, String>> ids = new TreeMap<>();   // element key -> role -> entity id
+
+  public static XmiManifest of(XmiIndex index) {
+    XmiManifest manifest = new XmiManifest();
+    for(XmiIndex.XmiClass xmiClass : index.getClasses()) {
+      manifest.fingerprints.put(classKey(xmiClass.getXmiId()), fingerprint("class", xmiClass.getName(), xmiClass.getIsLeaf(), index.getDatatypes().get(xmiClass.getXmiId())));
+    }
+    for(XmiIndex.XmiClass stub : index.getStubs()) {
+      manifest.fingerprints.put(classKey(stub.getXmiId()), fingerprint("stub", stub.getName()));
+    }
+    for(XmiIndex.Generalization generalization : index.getGeneralizations()) {
+      // Not the class names, a renamed class keeps its individual id so its generalizations stay the same
+      manifest.fingerprints.put(key(generalization), fingerprint("generalization", generalization.getSubtype(), generalization.getSupertype()));
+    }
+    for(XmiIndex.Association association : index.getAssociations()) {
+      manifest.fingerprints.put(key(association), fingerprint("association", association.getName(), association.getSourceName(), association.getTargetName()));
+    }
+    return manifest;
+  }
+
+  public static XmiManifest load(File file) {
+    XmiManifest manifest = new XmiManifest();
+    if(!file.exists()) {
+      return manifest;
+    }
+    try (BufferedReader reader = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+      String line;
+      while((line = reader.readLine()) != null) {
+        String[] parts = line.split("\t");
+        if("element".equals(parts[0]) && parts.length == 3) {
+          manifest.fingerprints.put(parts[1], parts[2]);
+        } else if("entity".equals(parts[0]) && parts.length == 2) {
+          manifest.entities.add(parts[1]);
+        } else if("id".equals(parts[0]) && parts.length == 4) {
+          manifest.putId(parts[1], parts[2], parts[3]);
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Problem reading manifest "+file, e);
+    }
+    return manifest;
+  }
+
+  public void save(File file) {
+    try (BufferedWriter writer = Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8)) {
+      for(Map.Entry<String, String> fingerprint : fingerprints.entrySet()) {
+        writer.write("element\t"+fingerprint.getKey()+"\t"+fingerprint.getValue());
+        writer.newLine();
+      }
+      for(String entity : entities) {
+        writer.write("entity\t"+entity);
+        writer.newLine();
+      }
+      for(Map.Entry<String, TreeMap<String, String>> element : ids.entrySet()) {
+        for(Map.Entry<String, String> id : element.getValue().entrySet()) {
+          writer.write("id\t"+element.getKey()+"\t"+id.getKey()+"\t"+id.getValue());
+          writer.newLine();
+        }
+      }
+    } catch (IOException e) {
+      throw new RuntimeException("Problem writing manifest "+file, e);
+    }
+  }
+
+
+
+  public static String classKey(String xmiId) {
+    return "class:"+xmiId;
+  }
+
+  public static String key(XmiIndex.Generalization generalization) {
+    return generalization.getXmiId() != null ? "generalization:"+generalization.getXmiId() : "generalization:"+generalization.getSubtype()+">"+generalization.getSupertype();
+  }
+
+  public static String key(XmiIndex.Association association) {
+    return association.getXmiId() != null ? "association:"+association.getXmiId() : "association:"+association.getSourceName()+">"+association.getName()+">"+association.getTargetName();
+  }
+
+  /**
+   * @return one fingerprint of all elements, it changes when any element of the model changes
+   */
+  public String getModelFingerprint() {
+    String[] values = new String[fingerprints.size() * 2];
+    int i = 0;
+    for(Map.Entry<String, String> fingerprint : fingerprints.entrySet()) {
+      values[i++] = fingerprint.getKey();
+      values[i++] = fingerprint.getValue();
+    }
+    return fingerprint(values);
+  }
+
+  private static String fingerprint(String... values) {
+    try {
+      MessageDigest digest = MessageDigest.getInstance("SHA-1");
+      for(String value : values) {
+        digest.update(String.valueOf(value).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+      }
+      StringBuilder hex = new StringBuilder();
+      for(byte b : digest.digest()) {
+        hex.append(String.format("%02x", b & 0xff));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new RuntimeException("SHA-1 not available", e);
+    }
+  }
+
+
+
+  public Map<String, String> getFingerprints() {
+    return fingerprints;
+  }
+
+  public Set<String> getEntities() {
+    return entities;
+  }
+
+  /**
+   * @return the id of the entity written for the element in this role, null if there is none
+   */
+  public String getId(String elementKey, String role) {
+    Map<String, String> roles = ids.get(elementKey);
+    return roles != null ? roles.get(role) : null;
+  }
+
+  public void putId(String elementKey, String role, String id) {
+    TreeMap<String, String> roles = ids.get(elementKey);
+    if(roles == null) {
+      roles = new TreeMap<>();
+      ids.put(elementKey, roles);
+    }
+    roles.put(role, id);
+  }
+
+  public Map<String, TreeMap<String, String>> getIds() {
+    return ids;
+  }
+}
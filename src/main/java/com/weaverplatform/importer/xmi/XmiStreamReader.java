@@ -0,0 +1,151 @@
+package com.weaverplatform.importer.xmi;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Reads an xmi file with StAX and only keeps the elements the creators map to Weaver objects.
+ *
+ * The mapped elements are copied (with their subtree) directly under a copy of the root element, all other
+ * content (diagrams, extensions, packages) is skipped while streaming. The resulting document can be queried
+ * with the same xpaths as the full document.
+ */
+public class XmiStreamReader {
+
+  public static final Set<String> MAPPED_ELEMENTS = new HashSet<>(Arrays.asList(
+    "UML:Class",
+    "EAStub",
+    "UML:Generalization",
+    "UML:Association"
+  ));
+
+  /**
+   * Receives every mapped element as soon as it is read completely
+   */
+  public interface ElementHandler {
+    void element(Element element);
+  }
+
+  public Document read(InputStream inputStream) {
+    return read(inputStream, null);
+  }
+
+  /**
+   * @param handler receives the mapped elements instead of the document, so only one element is kept in memory
+   *                at a time; the returned document then only has the root element
+   */
+  public Document read(InputStream inputStream, ElementHandler handler) {
+
+    XMLStreamReader reader = null;
+    try {
+      XMLInputFactory factory = XMLInputFactory.newInstance();
+      factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, true);
+      factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+      reader = factory.createXMLStreamReader(inputStream);
+
+      DocumentBuilderFactory domFactory = DocumentBuilderFactory.newInstance();
+      domFactory.setNamespaceAware(true);
+      Document document = domFactory.newDocumentBuilder().newDocument();
+
+      Element root = null;
+      Node current = null;
+      int copyDepth = 0;
+
+      while (reader.hasNext()) {
+        int event = reader.next();
+
+        if(event == XMLStreamConstants.START_ELEMENT) {
+          if(root == null) {
+            root = copyElement(document, reader);
+            document.appendChild(root);
+            current = root;
+          } else if(copyDepth > 0) {
+            current = current.appendChild(copyElement(document, reader));
+            copyDepth++;
+          } else if(MAPPED_ELEMENTS.contains(qualifiedName(reader))) {
+            current = copyElement(document, reader);
+            if(handler == null) {
+              root.appendChild(current);
+            }
+            copyDepth = 1;
+          } else {
+            declareNamespaces(root, reader);
+          }
+
+        } else if(event == XMLStreamConstants.END_ELEMENT) {
+          if(copyDepth > 0) {
+            copyDepth--;
+            if(copyDepth == 0 && handler != null) {
+              handler.element((Element) current);
+            }
+            current = copyDepth > 0 ? current.getParentNode() : root;
+          }
+        }
+      }
+
+      if(root == null) {
+        throw new RuntimeException("No root element found in inputStream");
+      }
+      return document;
+
+    } catch (Exception e) {
+      throw new RuntimeException("Problem streaming inputStream", e);
+    } finally {
+      if(reader != null) {
+        try {
+          reader.close();
+        } catch (XMLStreamException e) {
+          // nothing to do
+        }
+      }
+    }
+  }
+
+  private static String qualifiedName(XMLStreamReader reader) {
+    String prefix = reader.getPrefix();
+    if(prefix == null || prefix.isEmpty()) {
+      return reader.getLocalName();
+    }
+    return prefix + ":" + reader.getLocalName();
+  }
+
+  private static Element copyElement(Document document, XMLStreamReader reader) {
+    String namespace = reader.getNamespaceURI();
+    Element element = document.createElementNS(namespace == null || namespace.isEmpty() ? null : namespace, qualifiedName(reader));
+
+    declareNamespaces(element, reader);
+
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      String attributeNamespace = reader.getAttributeNamespace(i);
+      String prefix = reader.getAttributePrefix(i);
+      String name = prefix == null || prefix.isEmpty() ? reader.getAttributeLocalName(i) : prefix + ":" + reader.getAttributeLocalName(i);
+      element.setAttributeNS(attributeNamespace == null || attributeNamespace.isEmpty() ? null : attributeNamespace, name, reader.getAttributeValue(i));
+    }
+    return element;
+  }
+
+  /**
+   * Copies the namespace declarations of the current element, so prefixes stay resolvable by xpath.
+   */
+  private static void declareNamespaces(Element element, XMLStreamReader reader) {
+    for (int i = 0; i < reader.getNamespaceCount(); i++) {
+      String prefix = reader.getNamespacePrefix(i);
+      String name = prefix == null || prefix.isEmpty() ? XMLConstants.XMLNS_ATTRIBUTE : XMLConstants.XMLNS_ATTRIBUTE + ":" + prefix;
+      if(!element.hasAttribute(name)) {
+        element.setAttributeNS(XMLConstants.XMLNS_ATTRIBUTE_NS_URI, name, reader.getNamespaceURI(i));
+      }
+    }
+  }
+}
@@ -1,10 +1,35 @@
 package com.weaverplatform.importer.xmi;
 
+import com.weaverplatform.sdk.Weaver;
 import org.junit.Test;
+import org.w3c.dom.NodeList;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 /**
  * Created by Jonathan Smit, Sysunite 2016
@@ -14,6 +39,7 @@ public class ImportXmiTest {
   private String weaverUrl = "http://docker:9487";
   private String xmiPath = "InformatieBackboneModel.xml";
   private String datasetName = "model";
+  private String smallXmiPath = "SmallModel.xml";
 
   @Test
   public void ImportXmiConstructorTest() throws IOException {
@@ -28,10 +54,916 @@ public class ImportXmiTest {
     importXmi.readFromResources(xmiPath);
   }
 
+  @Test
+  public void streamingReadTest() {
+    ImportXmi importXmi = new ImportXmi((Weaver) null, datasetName);
+    importXmi.setStreaming(true);
+    importXmi.readFromResources(smallXmiPath);
+
+    assertEquals(4, importXmi.queryXPath(IndividualCreator.XPATH_TO_XMI_CLASSES).getLength());
+    assertEquals(1, importXmi.queryXPath(IndividualCreator.XPATH_TO_XMI_STUBS).getLength());
+    assertEquals(2, importXmi.queryXPath(IndividualCreator.XPATH_TO_XMI_GENERALIZATIONS).getLength());
+    assertEquals(2, importXmi.queryXPath(PredicateCreator.XPATH_TO_XMI_ASSOCIATIONS).getLength());
+    assertEquals(0, importXmi.queryXPath("//diagram").getLength());
+
+    NodeList leafs = importXmi.queryXPath("//UML:Class[@isLeaf='true']");
+    NodeList datatypes = importXmi.queryXPath(leafs.item(0), IndividualCreator.XPATH_TO_XMI_DATATYPE);
+    assertEquals("xsd:string", datatypes.item(0).getAttributes().getNamedItem("value").getNodeValue());
+  }
+
+  @Test
+  public void xmiIndexTest() {
+    for(boolean streaming : new boolean[] { false, true }) {
+      ImportXmi importXmi = new ImportXmi((Weaver) null, datasetName);
+      importXmi.setStreaming(streaming);
+      importXmi.readFromResources(smallXmiPath);
+      XmiIndex index = importXmi.getIndex();
+
+      assertEquals(4, index.getClasses().size());
+      assertEquals(1, index.getStubs().size());
+      assertEquals(2, index.getGeneralizations().size());
+      assertEquals(2, index.getAssociations().size());
+      assertEquals("xsd:string", index.getDatatypes().get("EAID_NAAM"));
+      assertEquals("lib:Brug", index.getAssociations().get(0).getSourceName());
+      assertEquals("lib:Sluis", index.getAssociations().get(0).getTargetName());
+      assertEquals("EAID_BRUG", index.getAssociations().get(0).getSourceType());
+      assertEquals("EAID_SLUIS", index.getAssociations().get(0).getTargetType());
+    }
+  }
+
+  @Test
+  public void xmiDeltaTest() {
+    ImportXmi importXmi = new ImportXmi((Weaver) null, datasetName);
+    importXmi.readFromResources(smallXmiPath);
+    XmiManifest manifest = XmiManifest.of(importXmi.getIndex());
+
+    XmiDelta first = new XmiDelta(new XmiManifest(), manifest);
+    assertEquals(manifest.getFingerprints().size(), first.getAdded().size());
+    assertTrue(first.isChanged(XmiManifest.classKey("EAID_BRUG")));
+
+    XmiDelta second = new XmiDelta(manifest, manifest);
+    assertTrue(second.getAdded().isEmpty());
+    assertTrue(second.getChanged().isEmpty());
+    assertFalse(second.isChanged(XmiManifest.classKey("EAID_BRUG")));
+
+    XmiManifest previous = XmiManifest.of(importXmi.getIndex());
+    previous.getFingerprints().put("class:EAID_OLD", "0");
+    previous.getFingerprints().put(XmiManifest.classKey("EAID_BRUG"), "0");
+    XmiDelta third = new XmiDelta(previous, manifest);
+    assertTrue(third.getRemoved().contains("class:EAID_OLD"));
+    assertTrue(third.isChanged(XmiManifest.classKey("EAID_BRUG")));
+
+    // A plan is not written to Weaver, so it can not be recorded in a manifest
+    importXmi.setManifest(new File("model.manifest"));
+    importXmi.setOperationLog(new File("model.log"));
+    try {
+      importXmi.run();
+      fail("Expected a manifest with an operation log to be refused");
+    } catch (IllegalStateException e) {
+      assertFalse(new File("model.manifest").exists());
+    }
+  }
+
+  @Test
+  public void incrementalImportTest() throws IOException {
+    String model = readResource(smallXmiPath);
+    String renamed = model.replace("name=\"lib:Brug\"", "name=\"lib:Bridge\"");
+    int association = renamed.indexOf("<UML:Association name=\"lib:hasName\"");
+    int end = renamed.indexOf("</UML:Association>", association) + "</UML:Association>".length();
+    String removed = renamed.substring(0, association) + renamed.substring(end);
+
+    File manifest = File.createTempFile("model-", ".manifest");
+    try {
+      MemorySink sink = new MemorySink();
+      ImportXmi importXmi = new ImportXmi(sink, datasetName);
+      importXmi.setManifest(manifest);
+      importXmi.readFromInputStream(new ByteArrayInputStream(model.getBytes(StandardCharsets.UTF_8)));
+      importXmi.run();
+      int written = sink.size();
+      String label = XmiManifest.load(manifest).getId(XmiManifest.classKey("EAID_BRUG"), XmiManifest.LABEL);
+      assertEquals("lib:Brug", sink.getNode(label).getAttributes().get("object"));
+      assertTrue(sink.getNode(XmiManifest.load(manifest).getId("generalization:EAID_GEN_1", XmiManifest.PROPERTY)) != null);
+
+      // A renamed class keeps its individual, a new label replaces the old one in its properties
+      CountingSink counting = new CountingSink(sink);
+      importXmi = new ImportXmi(counting, datasetName);
+      importXmi.setManifest(manifest);
+      importXmi.readFromInputStream(new ByteArrayInputStream(renamed.getBytes(StandardCharsets.UTF_8)));
+      importXmi.run();
+      assertEquals(1, counting.getAdds());
+      assertEquals(1, counting.getLinks());
+      assertEquals(written + 1, sink.size());
+      assertTrue(sink.getNode("lib:Bridge") == null);
+      String properties = sink.getNode("lib:Brug").getRelations().get("properties");
+      String relabeled = sink.getNode(properties).getRelations().get(label);
+      assertEquals("lib:Bridge", sink.getNode(relabeled).getAttributes().get("object"));
+      assertEquals(relabeled, XmiManifest.load(manifest).getId(XmiManifest.classKey("EAID_BRUG"), XmiManifest.LABEL));
+
+      // A removed association is refused before anything is written
+      counting = new CountingSink(sink);
+      importXmi = new ImportXmi(counting, datasetName);
+      importXmi.setManifest(manifest);
+      importXmi.readFromInputStream(new ByteArrayInputStream(removed.getBytes(StandardCharsets.UTF_8)));
+      try {
+        importXmi.run();
+        fail("Expected the removed association to be refused");
+      } catch (RuntimeException e) {
+        assertTrue(e.getMessage().contains("association:EAID_ASSOC_2 was removed"));
+      }
+      assertEquals(0, counting.getTotal());
+      assertEquals(written + 1, sink.size());
+    } finally {
+      manifest.delete();
+    }
+  }
+
+  @Test
+  public void memorySinkTest() {
+    MemorySink sink = new MemorySink();
+    ImportXmi importXmi = new ImportXmi(sink, datasetName);
+    importXmi.readFromResources(smallXmiPath);
+    importXmi.run();
+
+    assertEquals("$INDIVIDUAL", sink.getNode("lib:Brug").getType());
+    assertEquals("$INDIVIDUAL", sink.getNode("lib:Sluis").getType());
+    assertEquals("lib:Brug", sink.getNode("lib:Brug").getAttributes().get("name"));
+    String objects = sink.getNode(datasetName).getRelations().get("objects");
+    assertEquals("lib:Brug", sink.getNode(objects).getRelations().get("lib:Brug"));
+
+    String hasPart = NameProcessor.DEFAULT.domainPredicateRangeToId("lib:Brug", "lib:hasPart", "lib:Sluis");
+    assertEquals("lib:Brug", sink.getNode(hasPart).getRelations().get("domain"));
+    assertEquals("lib:Sluis", sink.getNode(hasPart).getRelations().get("range"));
+
+    // A type filter on every view and a filter for each association on the view of its source
+    int filters = 0;
+    for(MemorySink.Node node : sink.getNodes().values()) {
+      if("$FILTER".equals(node.getType()) && "lib:hasPart".equals(node.getAttributes().get("predicate"))) {
+        assertEquals("individual", node.getAttributes().get("celltype"));
+        filters++;
+      }
+    }
+    assertEquals(1, filters);
+
+    ImportMetrics metrics = importXmi.getMetrics();
+    assertTrue(metrics.getStageMillis().keySet().containsAll(Arrays.asList("parse", "classes", "predicates", "individuals", "generalizations", "domains", "views")));
+    assertEquals(sink.size() - 4, metrics.getEntities());   // the dataset and its collections exist before the import
+    assertTrue(metrics.getPeakHeap() > 0);
+    metrics.stageFinished("named \"stage\"", 0);
+    assertTrue(metrics.toJson().contains("\"named \\\"stage\\\"\": 0"));
+
+    CountingSink counting = new CountingSink();
+    importXmi = new ImportXmi(counting, datasetName);
+    importXmi.readFromResources(smallXmiPath);
+    importXmi.run();
+    assertTrue(counting.getAdds() > 0);
+    assertTrue(counting.getLinks() > 0);
+  }
+
+  @Test
+  public void writePipelineTest() {
+    // The lookup of a relation waits for the link that sets it in the same batch
+    MemorySink sink = new MemorySink();
+    WritePipeline pipeline = new WritePipeline(sink);
+    EntityRef brug = pipeline.add(new ConcurrentHashMap<String, String>(), "$INDIVIDUAL", "lib:Brug");
+    EntityRef sluis = pipeline.add(new ConcurrentHashMap<String, String>(), "$INDIVIDUAL", "lib:Sluis");
+    EntityRef collection = pipeline.collection();
+    pipeline.link(brug, "lib:hasPart", sluis);
+    pipeline.link(collection, sluis);
+    EntityRef part = pipeline.get(brug, "lib:hasPart");
+    assertFalse(part.isResolved());
+    pipeline.flush();
+    assertEquals("lib:Sluis", part.getId());
+    assertEquals("lib:Sluis", sink.getNode(collection.getId()).getRelations().get("lib:Sluis"));
+    pipeline.close();
+
+    // A failing operation fails the flush and the operations that depend on it are not executed
+    CountingSink failing = new CountingSink(new MemorySink()) {
+      @Override
+      public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+        if("lib:Kapot".equals(id)) {
+          throw new RuntimeException("Problem adding lib:Kapot");
+        }
+        return super.add(attributes, type, id, relations);
+      }
+    };
+    pipeline = new WritePipeline(failing);
+    EntityRef broken = pipeline.add(new ConcurrentHashMap<String, String>(), "$INDIVIDUAL", "lib:Kapot");
+    EntityRef whole = pipeline.add(new ConcurrentHashMap<String, String>(), "$INDIVIDUAL", "lib:Heel");
+    pipeline.link(broken, "lib:hasPart", whole);
+    try {
+      pipeline.flush();
+      fail("Expected the flush to fail");
+    } catch (RuntimeException e) {
+      assertEquals("Problem adding lib:Kapot", e.getMessage());
+    }
+    assertFalse(broken.isResolved());
+    assertTrue(whole.isResolved());
+    assertEquals(0, failing.getLinks());
+    pipeline.close();
+  }
+
+  @Test
+  public void stageGraphTest() {
+    final List<String> finished = Collections.synchronizedList(new ArrayList<String>());
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      StageGraph graph = new StageGraph(executor);
+      graph.add("a", stage(finished, "a", false));
+      graph.add("b", stage(finished, "b", false));
+      graph.add("c", stage(finished, "c", false), "a", "b");
+      graph.add("d", stage(finished, "d", false), "c");
+      graph.run();
+      assertEquals(4, finished.size());
+      assertTrue(finished.indexOf("c") > finished.indexOf("a") && finished.indexOf("c") > finished.indexOf("b"));
+      assertEquals("d", finished.get(3));
+
+      // A failed stage fails the run, its dependents are not started but independent stages finish
+      finished.clear();
+      graph = new StageGraph(executor);
+      graph.add("a", stage(finished, "a", true));
+      graph.add("b", stage(finished, "b", false));
+      graph.add("c", stage(finished, "c", false), "a");
+      graph.add("d", stage(finished, "d", false), "c");
+      try {
+        graph.run();
+        fail("Expected the stage graph to fail");
+      } catch (RuntimeException e) {
+        assertEquals("Problem in stage a", e.getMessage());
+      }
+      assertEquals(Arrays.asList("b"), finished);
+
+      // Failures that are not runtime exceptions are wrapped with the name of the stage
+      graph = new StageGraph(executor);
+      graph.add("parse", new Runnable() {
+        @Override
+        public void run() {
+          throw new AssertionError("Problem in parse");
+        }
+      });
+      try {
+        graph.run();
+        fail("Expected the stage graph to fail");
+      } catch (RuntimeException e) {
+        assertEquals("Import stage parse failed", e.getMessage());
+        assertTrue(e.getCause() instanceof AssertionError);
+      }
+    } finally {
+      executor.shutdown();
+    }
+  }
+
+  private static Runnable stage(final List<String> finished, final String name, final boolean fails) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        if(fails) {
+          throw new RuntimeException("Problem in stage "+name);
+        }
+        finished.add(name);
+      }
+    };
+  }
+
+  @Test
+  public void inFlightWindowTest() throws InterruptedException {
+    InFlightWindow window = new InFlightWindow(1);
+    try {
+      for(int i = 0; i < 3; i++) {
+        window.submit(new Runnable() {
+          @Override
+          public void run() {
+            throw new RuntimeException("Problem in task");
+          }
+        });
+      }
+      fail("Expected submit to rethrow the failed task");
+    } catch (RuntimeException e) {
+      assertEquals("Problem in task", e.getMessage());
+    } finally {
+      window.close();
+    }
+    assertTrue(window.isClosed());
+
+    // A task submitted to a closed window is refused without keeping its slot, so await does not block
+    window = new InFlightWindow(1);
+    window.close();
+    try {
+      window.submit(new Runnable() {
+        @Override
+        public void run() {
+        }
+      });
+      fail("Expected a closed window to refuse the task");
+    } catch (IllegalStateException e) {
+      assertEquals("The window is closed and accepts no new tasks", e.getMessage());
+    }
+    window.await();
+
+    // An import that fails while individuals are in flight does not leave the threads of its window behind
+    CountingSink failing = new CountingSink(new MemorySink()) {
+      @Override
+      public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+        if("lib:Sluis".equals(id)) {
+          throw new RuntimeException("Problem adding lib:Sluis");
+        }
+        return super.add(attributes, type, id, relations);
+      }
+    };
+    ImportXmi importXmi = new ImportXmi(failing, datasetName);
+    importXmi.setIndividualWindow(1);
+    importXmi.readFromResources(smallXmiPath);
+    try {
+      importXmi.run();
+      fail("Expected the import to fail");
+    } catch (RuntimeException e) {
+      assertEquals("Problem adding lib:Sluis", e.getMessage());
+    }
+    for(Thread thread : windowThreads()) {
+      thread.join(1000);
+    }
+    assertTrue(windowThreads().isEmpty());
+  }
+
+  private static List<Thread> windowThreads() {
+    List<Thread> threads = new ArrayList<>();
+    for(Thread thread : Thread.getAllStackTraces().keySet()) {
+      if(InFlightWindow.THREAD_NAME.equals(thread.getName()) && thread.isAlive()) {
+        threads.add(thread);
+      }
+    }
+    return threads;
+  }
+
+  @Test
+  public void operationLogTest() throws IOException {
+    File plan = File.createTempFile("plan-", ".log");
+    try {
+      ImportXmi planned = new ImportXmi((Weaver) null, datasetName);
+      planned.setOperationLog(plan);
+      planned.readFromResources(smallXmiPath);
+      planned.run();
+
+      MemorySink replayed = new MemorySink();
+      assertTrue(new ImportXmi(replayed, datasetName).replay(plan) > 0);
+
+      MemorySink direct = new MemorySink();
+      ImportXmi importXmi = new ImportXmi(direct, datasetName);
+      importXmi.readFromResources(smallXmiPath);
+      importXmi.run();
+
+      // The same graph, only the generated ids can differ
+      assertEquals(direct.size(), replayed.size());
+      for(MemorySink.Node node : direct.getNodes().values()) {
+        if(node.getId().startsWith("mem-")) {
+          continue;
+        }
+        MemorySink.Node copy = replayed.getNode(node.getId());
+        assertEquals(node.getType(), copy.getType());
+        assertEquals(node.getAttributes(), copy.getAttributes());
+        assertEquals(node.getRelations().keySet(), copy.getRelations().keySet());
+      }
+
+      // Values longer than the 64k bytes of writeUTF
+      char[] note = new char[70000];
+      Arrays.fill(note, 'ë');
+      ConcurrentHashMap<String, String> attributes = new ConcurrentHashMap<>();
+      attributes.put("note", new String(note));
+      OperationLog log = OperationLog.create(plan);
+      WritePipeline pipeline = new WritePipeline(log);
+      pipeline.add(attributes, "$INDIVIDUAL", "lib:Notitie");
+      pipeline.flush();
+      log.close();
+
+      MemorySink sink = new MemorySink();
+      new ImportXmi(sink, datasetName).replay(plan);
+      assertEquals(new String(note), sink.getNode("lib:Notitie").getAttributes().get("note"));
+    } finally {
+      Files.deleteIfExists(plan.toPath());
+    }
+  }
+
+  @Test
+  public void journalTest() throws IOException {
+    File journal = File.createTempFile("import-", ".journal");
+    try {
+      // The first run fails halfway, the resumed run continues with the ids of the first
+      MemorySink sink = new MemorySink();
+      ImportXmi importXmi = new ImportXmi(failOnce(sink, "lib:Sluis"), datasetName);
+      importXmi.setJournal(journal, false);
+      importXmi.readFromResources(smallXmiPath);
+      try {
+        importXmi.run();
+        fail("Expected the first run to fail");
+      } catch (RuntimeException e) {
+        assertEquals("Problem adding lib:Sluis", e.getMessage());
+      }
+      assertTrue(journal.exists());
+
+      importXmi = new ImportXmi(sink, datasetName);
+      importXmi.setJournal(journal, true);
+      importXmi.readFromResources(smallXmiPath);
+      importXmi.run();
+      assertFalse(journal.exists());
+
+      MemorySink direct = new MemorySink();
+      importXmi = new ImportXmi(direct, datasetName);
+      importXmi.readFromResources(smallXmiPath);
+      importXmi.run();
+      assertEquals(direct.size(), sink.size());
+
+      // A journal is not resumed for another model
+      importXmi = new ImportXmi(failOnce(new MemorySink(), "lib:Sluis"), datasetName);
+      importXmi.setJournal(journal, false);
+      importXmi.readFromResources(smallXmiPath);
+      try {
+        importXmi.run();
+      } catch (RuntimeException e) {
+        // the journal stays
+      }
+      XmiGenerator generator = new XmiGenerator();
+      generator.setClasses(10);
+      ByteArrayOutputStream generated = new ByteArrayOutputStream();
+      generator.write(generated);
+      importXmi = new ImportXmi(new MemorySink(), datasetName);
+      importXmi.setJournal(journal, true);
+      importXmi.readFromInputStream(new ByteArrayInputStream(generated.toByteArray()));
+      try {
+        importXmi.run();
+        fail("Expected the journal of another model to be refused");
+      } catch (RuntimeException e) {
+        assertTrue(e.getMessage().contains("another version of the model"));
+      }
+
+      // A last line without newline was cut off by a crash, it is dropped and not appended to
+      Journal writes = Journal.open(journal, false, "model");
+      writes.record("individuals:0", "lib:Brug");
+      writes.flush();
+      writes.close();
+      Files.write(journal.toPath(), "individuals:1\tlib:Sl".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+      writes = Journal.open(journal, true, "model");
+      assertEquals("lib:Brug", writes.getId("individuals:0"));
+      assertFalse(writes.isCompleted("individuals:1"));
+      writes.record("individuals:1", "lib:Sluis");
+      writes.close();
+      writes = Journal.open(journal, true, "model");
+      assertEquals("lib:Sluis", writes.getId("individuals:1"));
+      writes.close();
+    } finally {
+      Files.deleteIfExists(journal.toPath());
+    }
+  }
+
+  /**
+   * A sink that fails the first add of the entity with this id
+   */
+  private static ImportSink failOnce(ImportSink sink, final String failingId) {
+    return new CountingSink(sink) {
+      private boolean failed = false;
+
+      @Override
+      public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+        synchronized (this) {
+          if(failingId.equals(id) && !failed) {
+            failed = true;
+            throw new RuntimeException("Problem adding "+failingId);
+          }
+        }
+        return super.add(attributes, type, id, relations);
+      }
+    };
+  }
+
+  @Test
+  public void xmiGeneratorTest() {
+    XmiGenerator generator = new XmiGenerator();
+    generator.setClasses(100);
+    generator.setValueClasses(10);
+    generator.setStubs(3);
+    generator.setAssociations(50);
+    generator.setGeneralizations(2, 3);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    generator.write(out);
+
+    ImportXmi importXmi = new ImportXmi((Weaver) null, datasetName);
+    importXmi.readFromInputStream(new ByteArrayInputStream(out.toByteArray()));
+    XmiIndex index = importXmi.getIndex();
+
+    assertEquals(110, index.getClasses().size());
+    assertEquals(3, index.getStubs().size());
+    assertEquals(50, index.getAssociations().size());
+    // trees of 1 + 3 + 9 classes, every class but the roots has a generalization
+    assertEquals(100 - 8, index.getGeneralizations().size());
+    assertEquals(index.getClasses().size() + index.getStubs().size() + index.getGeneralizations().size() + index.getAssociations().size(), generator.getElementCount());
+  }
+
+  @Test
+  public void batchImportTest() throws IOException {
+    File directory = Files.createTempDirectory("batch").toFile();
+    File models = Files.createTempDirectory("batch").toFile();
+    try {
+      XmiGenerator generator = new XmiGenerator();
+      generator.setClasses(20);
+      generator.write(new File(directory, "first.xml"));
+      generator.write(new File(directory, "second.xmi"));
+      Files.write(new File(directory, "notes.txt").toPath(), "not a model".getBytes(StandardCharsets.UTF_8));
+
+      CountingSink sink = new CountingSink();
+      BatchImport batch = new BatchImport(sink, 2);
+      batch.addAll(directory);
+      assertEquals(Arrays.asList("first", "second"), new ArrayList<>(batch.getFiles().values()));
+      assertTrue(batch.run().isEmpty());
+
+      CountingSink single = new CountingSink();
+      ImportXmi importXmi = new ImportXmi(single, "first");
+      importXmi.readFromFile(new File(directory, "first.xml").getPath());
+      importXmi.run();
+      assertEquals(2 * single.getAdds(), sink.getAdds());
+
+      // Two different models at the same time, each ends up in its own dataset
+      try (InputStream small = getClass().getClassLoader().getResourceAsStream(smallXmiPath)) {
+        Files.copy(small, new File(models, "small.xml").toPath());
+      }
+      generator.write(new File(models, "generated.xml"));
+      MemorySink memory = new MemorySink();
+      batch = new BatchImport(memory, 2);
+      batch.addAll(models);
+      assertTrue(batch.run().isEmpty());
+
+      Map<String, String> small = memory.getNode(memory.getNode("small").getRelations().get("objects")).getRelations();
+      Map<String, String> generated = memory.getNode(memory.getNode("generated").getRelations().get("objects")).getRelations();
+      assertTrue(small.containsKey("lib:Brug") && !small.containsKey("lib:Klasse1"));
+      assertTrue(generated.containsKey("lib:Klasse1") && !generated.containsKey("lib:Brug"));
+    } finally {
+      deleteDirectory(directory);
+      deleteDirectory(models);
+    }
+  }
+
+  private static void deleteDirectory(File directory) throws IOException {
+    File[] files = directory.listFiles();
+    if(files != null) {
+      for(File file : files) {
+        Files.deleteIfExists(file.toPath());
+      }
+    }
+    Files.deleteIfExists(directory.toPath());
+  }
+
+  @Test
+  public void weaverPoolSinkTest() {
+    RecordingSink[] shards = { new RecordingSink("0"), new RecordingSink("1"), new RecordingSink("2") };
+    WeaverPoolSink pool = new WeaverPoolSink(shards);
+
+    // All calls for an entity with an id go to the shard its id hashes to
+    pool.add(new ConcurrentHashMap<String, String>(), "$INDIVIDUAL", "lib:Brug", null);
+    pool.get("lib:Brug");
+    pool.relation("lib:Brug", "lib:hasPart");
+    pool.link("lib:Brug", "lib:hasPart", "lib:Sluis");
+    RecordingSink brug = shards[("lib:Brug".hashCode() & 0x7fffffff) % shards.length];
+    assertEquals(Arrays.asList("add lib:Brug", "get lib:Brug", "relation lib:Brug", "link lib:Brug"), brug.calls);
+
+    // Generated entities are spread over the shards and stay with the shard that created them
+    List<String> generated = new ArrayList<>();
+    for(int i = 0; i < shards.length; i++) {
+      generated.add(pool.collection());
+    }
+    for(String id : generated) {
+      pool.link(id, "lib:Brug", "lib:Brug");
+    }
+    for(int i = 0; i < shards.length; i++) {
+      String id = generated.get(i);
+      RecordingSink owner = shards[Integer.parseInt(id.substring(0, id.indexOf('-')))];
+      assertEquals(1, Collections.frequency(shards[i].calls, "collection"));
+      assertTrue(owner.calls.contains("link "+id));
+    }
+
+    // The Weaver shards share the types of the entities they wrote
+    pool = new WeaverPoolSink(Arrays.asList((Weaver) null, (Weaver) null));
+    assertTrue(((WeaverSink) pool.getShards()[0]).getTypes() == ((WeaverSink) pool.getShards()[1]).getTypes());
+  }
+
+  /**
+   * Records the calls it receives and generates ids that start with its name
+   */
+  private static class RecordingSink implements ImportSink {
+
+    private final String name;
+    private final List<String> calls = new ArrayList<>();
+    private int ids = 0;
+
+    RecordingSink(String name) {
+      this.name = name;
+    }
+
+    @Override
+    public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+      calls.add("add "+id);
+      return id != null ? id : name+"-"+ids++;
+    }
+
+    @Override
+    public String collection() {
+      calls.add("collection");
+      return name+"-"+ids++;
+    }
+
+    @Override
+    public String get(String id) {
+      calls.add("get "+id);
+      return "$INDIVIDUAL";
+    }
+
+    @Override
+    public String dataset(String datasetId) {
+      calls.add("dataset "+datasetId);
+      return datasetId;
+    }
+
+    @Override
+    public String relation(String id, String key) {
+      calls.add("relation "+id);
+      return null;
+    }
+
+    @Override
+    public void link(String parentId, String key, String childId) {
+      calls.add("link "+parentId);
+    }
+
+    @Override
+    public void updateLink(String parentId, String key, String childId) {
+      calls.add("updateLink "+parentId);
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+
+  @Test
+  public void classHierarchyTest() throws IOException {
+    ImportXmi importXmi = new ImportXmi((Weaver) null, datasetName);
+    importXmi.readFromResources(smallXmiPath);
+    ClassHierarchy hierarchy = ClassHierarchy.build(importXmi.getIndex());
+    hierarchy.validate();
+    assertEquals(2, hierarchy.getGeneralizations().size());
+    assertEquals(Arrays.asList("EAID_OBJECT"), hierarchy.getSupertypes("EAID_BRUG"));
+
+    // A generalization to a class that does not exist and a cycle between Object and Brug
+    String xmi = readResource(smallXmiPath)
+      .replace("supertype=\"EAID_OBJECT\" xmi.id=\"EAID_GEN_2\"", "supertype=\"EAID_MISSING\" xmi.id=\"EAID_GEN_2\"")
+      .replace("<UML:Generalization subtype=\"EAID_BRUG\"", "<UML:Generalization subtype=\"EAID_OBJECT\" supertype=\"EAID_BRUG\" xmi.id=\"EAID_GEN_3\"/><UML:Generalization subtype=\"EAID_BRUG\"");
+    MemorySink sink = new MemorySink();
+    importXmi = new ImportXmi(sink, datasetName);
+    importXmi.readFromInputStream(new ByteArrayInputStream(xmi.getBytes(StandardCharsets.UTF_8)));
+    hierarchy = ClassHierarchy.build(importXmi.getIndex());
+    assertEquals(1, hierarchy.getDangling().size());
+    assertEquals(Arrays.asList("EAID_OBJECT", "EAID_BRUG", "EAID_OBJECT"), hierarchy.getCycle());
+
+    try {
+      importXmi.run();
+      fail("Expected the import to fail");
+    } catch (RuntimeException e) {
+      assertTrue(e.getMessage().contains("EAID_MISSING"));
+    }
+    assertEquals(0, sink.size());
+  }
+
+  @Test
+  public void concurrentImportsTest() throws Exception {
+    XmiGenerator generator = new XmiGenerator();
+    generator.setClasses(50);
+    ByteArrayOutputStream generated = new ByteArrayOutputStream();
+    generator.write(generated);
+
+    final ImportXmi small = new ImportXmi(new MemorySink(), datasetName);
+    small.setSource("small");
+    small.readFromResources(smallXmiPath);
+    final ImportXmi large = new ImportXmi(new MemorySink(), datasetName);
+    large.setSource("generated");
+    large.readFromInputStream(new ByteArrayInputStream(generated.toByteArray()));
+
+    // Each import queries its own document
+    assertEquals(4, small.queryXPath(IndividualCreator.XPATH_TO_XMI_CLASSES).getLength());
+    assertEquals(150, large.queryXPath(IndividualCreator.XPATH_TO_XMI_CLASSES).getLength());
+
+    Thread thread = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        large.run();
+      }
+    });
+    thread.start();
+    small.run();
+    thread.join();
+
+    MemorySink smallSink = (MemorySink) small.getSink();
+    MemorySink largeSink = (MemorySink) large.getSink();
+    assertEquals("small", smallSink.getNode("lib:Brug").getAttributes().get("source"));
+    assertEquals("generated", largeSink.getNode("lib:Klasse1").getAttributes().get("source"));
+    assertEquals(null, largeSink.getNode("lib:Brug"));
+  }
+
+  @Test
+  public void pipelinedImportTest() throws Exception {
+    MemorySink sink = new MemorySink();
+    ImportXmi importXmi = new ImportXmi(sink, datasetName);
+    importXmi.readFromResources(smallXmiPath);
+    importXmi.run();
+
+    MemorySink pipelinedSink = new MemorySink();
+    ImportXmi pipelined = new ImportXmi(pipelinedSink, datasetName);
+    try (InputStream stream = getClass().getClassLoader().getResourceAsStream(smallXmiPath)) {
+      pipelined.runPipelined(stream);
+    }
+
+    // The same model
+    assertEquals(sink.size(), pipelinedSink.size());
+    assertTrue(pipelinedSink.getNode("lib:Brug") != null);
+    assertTrue(pipelined.getMetrics().getStageMillis().keySet().containsAll(Arrays.asList("parse", "firstWrite", "stream", "individuals", "views")));
+
+    // The first class is written while the end of the file is held back
+    XmiGenerator generator = new XmiGenerator();
+    generator.setClasses(1000);
+    ByteArrayOutputStream generated = new ByteArrayOutputStream();
+    generator.write(generated);
+    final byte[] xmi = generated.toByteArray();
+    final CountDownLatch written = new CountDownLatch(1);
+    MemorySink gatedSink = new MemorySink() {
+      @Override
+      public String add(Map<String, String> attributes, String type, String id, Map<String, String> relations) {
+        String added = super.add(attributes, type, id, relations);
+        if("lib:Klasse1".equals(id)) {
+          written.countDown();
+        }
+        return added;
+      }
+    };
+    final boolean[] writtenBeforeEnd = { false };
+    InputStream gated = new ByteArrayInputStream(xmi) {
+      @Override
+      public synchronized int read(byte[] buffer, int offset, int length) {
+        int gate = xmi.length - 1024;
+        if(pos < gate) {
+          return super.read(buffer, offset, Math.min(length, gate - pos));
+        }
+        if(pos == gate) {
+          try {
+            writtenBeforeEnd[0] = written.await(10, TimeUnit.SECONDS);
+          } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+          }
+        }
+        return super.read(buffer, offset, length);
+      }
+    };
+    new ImportXmi(gatedSink, datasetName).runPipelined(gated);
+    assertTrue(writtenBeforeEnd[0]);
+  }
+
+  @Test
+  public void importServerTest() throws Exception {
+    MemorySink sink = new MemorySink();
+    ImportServer server = new ImportServer(sink, 2, 10);
+    server.start(0);
+    try {
+      String base = "http://localhost:"+server.getPort();
+      HttpURLConnection post = post(new URL(base+"/imports?dataset="+datasetName), smallXmiPath);
+      assertEquals(202, post.getResponseCode());
+      assertEquals("/imports/1", post.getHeaderField("Location"));
+
+      ImportServer.Job job = server.getJob(1);
+      for(int i = 0; i < 100 && job.getStatus() != ImportServer.Status.DONE && job.getStatus() != ImportServer.Status.FAILED; i++) {
+        Thread.sleep(100);
+      }
+      assertEquals(ImportServer.Status.DONE, job.getStatus());
+      assertEquals("$INDIVIDUAL", sink.getNode("lib:Brug").getType());
+
+      String status = read(new URL(base+"/imports/1"));
+      assertTrue(status.contains("\"status\": \"done\"") && status.contains("\"metrics\""));
+      assertTrue(read(new URL(base+"/metrics")).contains("\"done\": 1"));
+      assertEquals(404, ((HttpURLConnection) new URL(base+"/imports/2").openConnection()).getResponseCode());
+
+      server.setMaxUploadBytes(100);
+      assertEquals(413, post(new URL(base+"/imports?dataset="+datasetName), smallXmiPath).getResponseCode());
+    } finally {
+      server.stop();
+    }
+
+    // Stopping waits for the running import and drops the queued one
+    final CountDownLatch release = new CountDownLatch(1);
+    ImportSink blocking = new CountingSink(new MemorySink()) {
+      @Override
+      public String dataset(String datasetId) {
+        try {
+          release.await();
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+        return super.dataset(datasetId);
+      }
+    };
+    final ImportServer stopping = new ImportServer(blocking, 1, 10);
+    File first = File.createTempFile("import-", ".xmi");
+    File second = File.createTempFile("import-", ".xmi");
+    Files.write(first.toPath(), readResource(smallXmiPath).getBytes(StandardCharsets.UTF_8));
+    Files.write(second.toPath(), readResource(smallXmiPath).getBytes(StandardCharsets.UTF_8));
+    ImportServer.Job running = stopping.submit(first, "first", false);
+    ImportServer.Job queued = stopping.submit(second, "second", false);
+    for(int i = 0; i < 100 && running.getStatus() != ImportServer.Status.RUNNING; i++) {
+      Thread.sleep(10);
+    }
+    Thread stopper = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        stopping.stop();
+      }
+    });
+    stopper.start();
+    for(int i = 0; i < 100 && queued.getStatus() != ImportServer.Status.FAILED; i++) {
+      Thread.sleep(10);
+    }
+    release.countDown();
+    stopper.join();
+    assertEquals(ImportServer.Status.DONE, running.getStatus());
+    assertEquals(ImportServer.Status.FAILED, queued.getStatus());
+    assertFalse(first.exists() || second.exists());
+
+    // An error fails the job instead of leaving it running
+    ImportServer failing = new ImportServer(new CountingSink(new MemorySink()) {
+      @Override
+      public String dataset(String datasetId) {
+        throw new OutOfMemoryError("Simulated");
+      }
+    }, 1, 10);
+    File model = File.createTempFile("import-", ".xmi");
+    Files.write(model.toPath(), readResource(smallXmiPath).getBytes(StandardCharsets.UTF_8));
+    ImportServer.Job job = failing.submit(model, "model", false);
+    for(int i = 0; i < 100 && job.getStatus() != ImportServer.Status.FAILED; i++) {
+      Thread.sleep(10);
+    }
+    failing.stop();
+    assertEquals(ImportServer.Status.FAILED, job.getStatus());
+    assertTrue(job.getError().contains("Simulated"));
+    assertFalse(model.exists());
+  }
+
+  private HttpURLConnection post(URL url, String resource) throws IOException {
+    HttpURLConnection post = (HttpURLConnection) url.openConnection();
+    post.setRequestMethod("POST");
+    post.setDoOutput(true);
+    try (InputStream xmi = getClass().getClassLoader().getResourceAsStream(resource); OutputStream body = post.getOutputStream()) {
+      byte[] buffer = new byte[8192];
+      for(int read; (read = xmi.read(buffer)) > 0; ) {
+        body.write(buffer, 0, read);
+      }
+    }
+    return post;
+  }
+
+  private static String read(URL url) throws IOException {
+    try (InputStream in = url.openStream()) {
+      return read(in);
+    }
+  }
+
+  private String readResource(String path) throws IOException {
+    try (InputStream in = getClass().getClassLoader().getResourceAsStream(path)) {
+      return read(in);
+    }
+  }
+
+  private static String read(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    for(int read; (read = in.read(buffer)) > 0; ) {
+      out.write(buffer, 0, read);
+    }
+    return new String(out.toByteArray(), StandardCharsets.UTF_8);
+  }
+
+  @Test
+  public void propertyIdsTest() {
+    PropertyIds ids = new PropertyIds(datasetName);
+    String id = ids.id("$VALUE_PROPERTY", "lib:Brug", "rdfs:label", "lib:Brug");
+
+    assertEquals(id, new PropertyIds(datasetName).id("$VALUE_PROPERTY", "lib:Brug", "rdfs:label", "lib:Brug"));
+    assertEquals('8', id.charAt(14));
+    assertFalse(id.equals(new PropertyIds("other").id("$VALUE_PROPERTY", "lib:Brug", "rdfs:label", "lib:Brug")));
+    assertFalse(id.equals(ids.id("$VALUE_PROPERTY", "lib:Bru", "grdfs:label", "lib:Brug")));
+  }
+
   @Test
   public void deAccentTest() {
 
     assertEquals("lib:JeelBeil", IndividualCreator.deAccent("lib:JëelBeíl"));
+    assertEquals("lib:Brug", IndividualCreator.deAccent("lib:Brug"));
+
+    NameProcessor names = NameProcessor.DEFAULT;
+    String predicateId = names.domainPredicateRangeToId("lib:Brug", "lib:hasPart", "lib:Sluis");
+    assertEquals("lib:libBrug-libhasPart-libSluis", predicateId);
+    assertEquals("has part", names.predicateNameFromId("lib:hasPart"));
+    assertEquals("trap sah", names.predicateReversedNameFromId("lib:hasPart"));
   }
 
 